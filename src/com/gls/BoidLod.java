@@ -0,0 +1,94 @@
+package com.gls;
+
+import javafx.scene.PerspectiveCamera;
+import javafx.scene.shape.TriangleMesh;
+
+/**
+ * Picks how much detail to draw a boid with, from how big it comes out on screen.
+ *
+ * The projected size of something s units across at distance d is
+ * s * h / (2 * d * tan(fov / 2)) pixels, where h is the viewport size along the
+ * axis the field of view is measured on. The camera, field of view and viewport
+ * are read again with every update(), so the thresholds follow the camera around,
+ * into and out of POV mode.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public class BoidLod {
+
+    public enum Level {
+        // The original figure, a sphere body with box wings and tail
+        FULL,
+        // The low-poly model from BoidMesh, one mesh node
+        LOW,
+        // Two crossed quads, so it shows from any side
+        MARKER
+    }
+
+    private final double fullPixels;
+    private final double markerPixels;
+
+    // Pixels for one unit at unit distance
+    private double pixelsPerUnit = 1.0;
+    private double thresholdScale = 1.0;
+
+    /**
+     * @param fullPixels draw the full figure from this many pixels across
+     * @param markerPixels draw a marker below this many pixels across
+     */
+    public BoidLod(double fullPixels, double markerPixels) {
+        this.fullPixels = fullPixels;
+        this.markerPixels = markerPixels;
+    }
+
+    /**
+     * Pick up the camera's field of view and the viewport size for this frame.
+     */
+    public void update(PerspectiveCamera camera, double viewportWidth, double viewportHeight) {
+        double extent = camera.isVerticalFieldOfView() ? viewportHeight : viewportWidth;
+        pixelsPerUnit = extent / (2.0 * Math.tan(Math.toRadians(camera.getFieldOfView()) / 2.0));
+    }
+
+    /**
+     * Screen size in pixels of something size units across at a distance.
+     */
+    public double pixels(double size, double distance) {
+        return size * pixelsPerUnit / Math.max(distance, 1e-6);
+    }
+
+    public double getThresholdScale() {
+        return thresholdScale;
+    }
+
+    /**
+     * Multiply both thresholds, so above one every boid drops to a lower level
+     * sooner.
+     */
+    public void setThresholdScale(double value) {
+        thresholdScale = value;
+    }
+
+    public Level levelFor(double size, double distance) {
+        double pixels = pixels(size, distance);
+        if (pixels >= fullPixels * thresholdScale) {
+            return Level.FULL;
+        }
+        return pixels >= markerPixels * thresholdScale ? Level.LOW : Level.MARKER;
+    }
+
+    /**
+     * A flat diamond in the wing plane crossed with one in the tail plane, in the
+     * same model space as the figure.
+     */
+    public static TriangleMesh createMarkerMesh() {
+        TriangleMesh mesh = new TriangleMesh();
+        mesh.getPoints().addAll(
+            // wing plane
+            0, -15, 0, 20, 2.5f, 0, 0, 15, 0, -20, 2.5f, 0,
+            // tail plane
+            0, -15, 0, 0, 0, 9, 0, 15, 0, 0, 0, -5);
+        mesh.getTexCoords().addAll(0, 0);
+        mesh.getFaces().addAll(0, 0, 1, 0, 2, 0, 0, 0, 2, 0, 3, 0, 4, 0, 5, 0, 6, 0, 4, 0, 6, 0, 7, 0);
+        return mesh;
+    }
+}
@@ -0,0 +1,220 @@
+package com.gls;
+
+import java.util.Arrays;
+
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
+import javafx.scene.paint.Color;
+import javafx.scene.paint.PhongMaterial;
+import javafx.scene.shape.CullFace;
+import javafx.scene.shape.MeshView;
+import javafx.scene.shape.TriangleMesh;
+
+/**
+ * All of the boids in a single TriangleMesh.
+ *
+ * Each boid is a low-poly copy of the Boids3D figure: a diamond body, flat wings
+ * and a flat tail. The pose of every boid is written straight into one points
+ * array, and the whole array goes to the mesh in one update per frame. Colors
+ * come from a strip in the diffuse map with one texel per palette bucket, and one
+ * texture coordinate per boid.
+ *
+ * The count can change. The arrays grow by doubling and shrink when the count
+ * drops to a quarter of them, like the flock's.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public class BoidMesh {
+
+    // Model coordinates, same layout as the figure. The boid flies along +Y and
+    // the tail sticks out along +Z.
+    private static final float[] MODEL = {
+        // body
+        0, -15, 0, 0, 15, 0, -5, 0, 0, 5, 0, 0, 0, 0, -5, 0, 0, 5,
+        // wings
+        -20, -2.5f, 0, 20, -2.5f, 0, 20, 7.5f, 0, -20, 7.5f, 0,
+        // tail
+        0, -14, 1, 0, -14, 9, 0, -6, 9, 0, -6, 1 };
+    private static final int[] FACES = {
+        // body
+        1, 2, 4, 1, 4, 3, 1, 3, 5, 1, 5, 2, 0, 4, 2, 0, 3, 4, 0, 5, 3, 0, 2, 5,
+        // wings
+        6, 7, 8, 6, 8, 9,
+        // tail
+        10, 11, 12, 10, 12, 13 };
+    private static final int VERTS = MODEL.length / 3;
+    private static final int TRIS = FACES.length / 3;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private int count;
+    private int capacity;
+    // Hue strip: one texel per palette bucket, plus one for boids with no neighbors
+    private final HuePalette palette;
+    private final int numHues;
+    private final TriangleMesh mesh = new TriangleMesh();
+    private final MeshView view = new MeshView(mesh);
+    private float[] points = new float[0];
+    private float[] texCoords = new float[0];
+    private int[] faces = new int[0];
+
+    public BoidMesh(int count, HuePalette palette, Color noneColor) {
+        this.palette = palette;
+        numHues = palette.getBuckets();
+        setCount(count);
+
+        WritableImage strip = new WritableImage(numHues + 1, 1);
+        PixelWriter writer = strip.getPixelWriter();
+        for (int h = 0; h < numHues; h++) {
+            writer.setColor(h, 0, palette.getColor(h));
+        }
+        writer.setColor(numHues, 0, noneColor);
+        PhongMaterial mat = new PhongMaterial();
+        mat.setDiffuseMap(strip);
+        mat.setSpecularColor(Color.GRAY);
+        view.setMaterial(mat);
+        // Wings and tail are single sided
+        view.setCullFace(CullFace.NONE);
+    }
+
+    /**
+     * The model for a single boid, for drawing one on its own. Texture coordinates
+     * are all zero, color it with the material's diffuse color.
+     */
+    public static TriangleMesh createModelMesh() {
+        TriangleMesh model = new TriangleMesh();
+        model.getPoints().addAll(MODEL);
+        model.getTexCoords().addAll(0, 0);
+        int[] faces = new int[FACES.length * 2];
+        for (int k = 0; k < FACES.length; k++) {
+            faces[2 * k] = FACES[k];
+        }
+        model.getFaces().addAll(faces);
+        return model;
+    }
+
+    public MeshView getNode() {
+        return view;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Change the number of boids. New boids need a pose and a hue before the next
+     * update().
+     */
+    public void setCount(int value) {
+        if (value > capacity) {
+            allocate(Math.max(value, 2 * capacity));
+        } else if (value < capacity / 4 && capacity > MIN_CAPACITY) {
+            allocate(Math.max(2 * value, MIN_CAPACITY));
+        }
+        count = value;
+        mesh.getPoints().setAll(points, 0, count * VERTS * 3);
+        mesh.getTexCoords().setAll(texCoords, 0, count * 2);
+        mesh.getFaces().setAll(faces, 0, count * TRIS * 6);
+    }
+
+    private void allocate(int newCapacity) {
+        points = Arrays.copyOf(points, newCapacity * VERTS * 3);
+        texCoords = Arrays.copyOf(texCoords, newCapacity * 2);
+        faces = new int[newCapacity * TRIS * 6];
+        int f = 0;
+        for (int i = 0; i < newCapacity; i++) {
+            for (int k = 0; k < FACES.length; k++) {
+                faces[f++] = i * VERTS + FACES[k];
+                faces[f++] = i;
+            }
+        }
+        capacity = newCapacity;
+    }
+
+    /**
+     * Place boid i at a position, facing along its velocity.
+     *
+     * With up set, the boid is rolled so the tail points as far up (-Y) as it can,
+     * like the figures do. Otherwise it takes the shortest rotation from +Y onto
+     * the velocity.
+     */
+    public void setPose(int i, double x, double y, double z, double dx, double dy, double dz, double scale,
+        boolean up) {
+        double mag = Math.sqrt(dx * dx + dy * dy + dz * dz);
+        // Forward, the model Y axis
+        double fx, fy, fz;
+        if (mag == 0.0) {
+            fx = 0.0;
+            fy = 1.0;
+            fz = 0.0;
+        } else {
+            fx = dx / mag;
+            fy = dy / mag;
+            fz = dz / mag;
+        }
+
+        // Model Z axis
+        double ux, uy, uz;
+        if (up) {
+            // World up is -Y, take out the forward part
+            ux = fy * fx;
+            uy = -1.0 + fy * fy;
+            uz = fy * fz;
+        } else {
+            // Where the shortest rotation from Y onto forward takes Z
+            double c = fy;
+            ux = -fx * fz / (1.0 + c);
+            uy = -fz;
+            uz = c + fx * fx / (1.0 + c);
+            if (c <= -1.0 + 1e-9) {
+                ux = 0.0;
+                uy = 0.0;
+                uz = 1.0;
+            }
+        }
+        double umag = Math.sqrt(ux * ux + uy * uy + uz * uz);
+        if (umag < 1e-9) {
+            // Flying straight up or down, any side will do
+            ux = 0.0;
+            uy = 0.0;
+            uz = 1.0;
+            umag = 1.0;
+        }
+        ux /= umag;
+        uy /= umag;
+        uz /= umag;
+
+        // Model X axis, forward cross up
+        double rx = fy * uz - fz * uy;
+        double ry = fz * ux - fx * uz;
+        double rz = fx * uy - fy * ux;
+
+        int p = i * VERTS * 3;
+        for (int k = 0; k < MODEL.length; k += 3) {
+            double mx = MODEL[k] * scale;
+            double my = MODEL[k + 1] * scale;
+            double mz = MODEL[k + 2] * scale;
+            points[p++] = (float) (x + mx * rx + my * fx + mz * ux);
+            points[p++] = (float) (y + mx * ry + my * fy + mz * uy);
+            points[p++] = (float) (z + mx * rz + my * fz + mz * uz);
+        }
+    }
+
+    /**
+     * Color boid i with a hue in degrees, or the no-neighbor color if hue is
+     * negative.
+     */
+    public void setHue(int i, double hue) {
+        int texel = hue < 0.0 ? numHues : palette.bucketOf(hue);
+        texCoords[2 * i] = (texel + 0.5f) / (numHues + 1);
+        texCoords[2 * i + 1] = 0.5f;
+    }
+
+    /**
+     * Send the poses and colors to the mesh.
+     */
+    public void update() {
+        mesh.getPoints().set(0, points, 0, count * VERTS * 3);
+        mesh.getTexCoords().set(0, texCoords, 0, count * 2);
+    }
+}
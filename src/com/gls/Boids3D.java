@@ -1,15 +1,42 @@
 package com.gls;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
+import java.util.SplittableRandom;
+
+import com.gls.boids.BoidRandom;
+import com.gls.boids.CollisionMonitor;
+import com.gls.boids.CollisionRing;
+import com.gls.boids.DistanceField;
+import com.gls.boids.Flock;
+import com.gls.boids.FlockSimulation;
+import com.gls.boids.FrameEvent;
+import com.gls.boids.Obstacle;
+import com.gls.boids.RollingHistogram;
+import com.gls.boids.ShardCoordinator;
+import com.gls.boids.SharedStateExporter;
+import com.gls.boids.Snapshot;
+import com.gls.boids.SnapshotSource;
+import com.gls.boids.SpatialGrid;
+import com.gls.boids.TrajectoryPlayer;
+import com.gls.boids.TrajectoryReader;
+import com.gls.boids.TrajectoryRecorder;
 
 import javafx.animation.AnimationTimer;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.beans.property.DoubleProperty;
+import javafx.beans.property.IntegerProperty;
 import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.property.SimpleDoubleProperty;
+import javafx.beans.property.SimpleIntegerProperty;
 import javafx.event.ActionEvent;
 import javafx.geometry.Insets;
 import javafx.geometry.Point3D;
@@ -32,11 +59,17 @@ import javafx.scene.layout.GridPane;
 import javafx.scene.paint.Color;
 import javafx.scene.paint.PhongMaterial;
 import javafx.scene.shape.Box;
+import javafx.scene.shape.CullFace;
+import javafx.scene.shape.Cylinder;
+import javafx.scene.shape.MeshView;
+import javafx.scene.shape.Shape3D;
 import javafx.scene.shape.Sphere;
+import javafx.scene.shape.TriangleMesh;
 import javafx.scene.text.Text;
 import javafx.scene.transform.Rotate;
 import javafx.scene.transform.Translate;
 import javafx.stage.Stage;
+import jdk.jfr.EventType;
 
 /**
  * 3D Boids This JavaFX application implements the Boids algorithm.
@@ -54,27 +87,75 @@ public class Boids3D extends Application {
     private static final double FIELD_SIZE_Y = 1350.0;
     private static final double FIELD_SIZE_Z = 2400.0;
 
-    private static final int NUM_BOIDS = 400;
+    private static final int INIT_BOIDS = 400;
+    private static final int MIN_BOIDS = 0;
+    // Top of the slider
+    private static final int MAX_BOIDS = 4000;
+    private static final int BOIDS_STEP = 50;
     private static final double MIN_BOID_SIZE = 0.1;
     private static final double MAX_BOID_SIZE = 5.0;
     private static final double INIT_BOID_SIZE = 1.2;
     private static final double MIN_SPEED = 0.0;
-    private static final double MAX_SPEED = 3.0;
-    private static final double MAX_DELTA = 1.0;
+    private static final double MAX_SPEED = Flock.MAX_SPEED;
     private static final double MIN_VIEW = 0.0;
     private static final double MAX_VIEW = 400.0;
     private static final double INIT_VIEW = 150.0;
+    private static final double MIN_VIEW_ANGLE = 0.0;
+    private static final double MAX_VIEW_ANGLE = 360.0;
+    private static final double INIT_VIEW_ANGLE = 360.0;
+    private static final int NUM_NEAREST = 7;
     private static final double MIN_PUSH_SCALE = 0.0;
     private static final double MAX_PUSH_SCALE = 1.0;
     private static final double INIT_PUSH_SCALE = 1.0;
     private static final double MIN_PULL_SCALE = 0.0;
     private static final double MAX_PULL_SCALE = 1.0;
     private static final double INIT_PULL_SCALE = 0.1;
-    private static final double MATCH_SCALE = 0.1;
-    private static final double CENTER_SCALE = 1.0;
+    private static final double STEPS_PER_SECOND = 60.0;
+    // Frame time the governor aims for
+    private static final double FRAMES_PER_SECOND = 60.0;
+    private static final int ALLOC_WARMUP = 100;
+    // Phase timings are kept for the last few seconds, and shown a few times a second
+    private static final int TIMING_WINDOW = 300;
+    private static final int UI_REFRESH_FRAMES = 15;
+
+    // Level of detail: the full figure from this many pixels across, a marker
+    // below the second. The span is the figure's wingspan at scale 1.
+    private static final double LOD_FULL_PIXELS = 30.0;
+    private static final double LOD_MARKER_PIXELS = 12.0;
+    private static final double BOID_SPAN = 40.0;
+
+    // Multi-rate steering: boids this close to the camera are steered every step,
+    // further out every 2nd, 4th or 8th
+    private static final double FULL_RATE_DISTANCE = 800.0;
+
+    // Start with --seed=N to repeat a run. The seed of every run is printed.
+    private static final String SEED_PARAMETER = "seed";
+    // Start with --shards=N to simulate in N processes, one slab of the field each
+    private static final String SHARDS_PARAMETER = "shards";
+    // Start with --log-collisions=true to print every collision
+    private static final String LOG_COLLISIONS_PARAMETER = "log-collisions";
+
+    // Key R records to this file, key P plays it back. Start with --replay=FILE
+    // to play another one.
+    private static final String RECORDING_FILE = "boids.trj";
+    // Key E publishes every step to this file for other processes to read, in
+    // shared memory where there is one. Start with --export=FILE to use another.
+    private static final String EXPORT_FILE = "boids.shm";
+    private static final String SHARED_MEMORY_DIR = "/dev/shm";
+    private static final String EXPORT_PARAMETER = "export";
+    private static final int EXPORT_HEADROOM = 2;
+
+    // Snapshots further apart than this, a seek in a replay, are not interpolated
+    private static final long MAX_LERP_STEPS = 4;
+
+    private static final EventType FRAME_EVENT = EventType.getEventType(FrameEvent.class);
 
     private static final Color FILL_COLOR = Color.LIGHTSKYBLUE;
     private static final Color BOID_COLOR = Color.LIGHTSLATEGRAY;
+    // Hue step between flock ids, spreads neighboring ids around the wheel
+    private static final double GOLDEN_ANGLE = 137.50776405003785;
+    // Grid spacing of the baked obstacle distances
+    private static final double OBSTACLE_SPACING = 25.0;
 
     private boolean up = true;
     private boolean pov = false;
@@ -82,13 +163,107 @@ public class Boids3D extends Application {
     private boolean focusDirty = true;
     private int povBoid = 0;
     private int numColors = 0;
-
-    Boid[] boids = new Boid[NUM_BOIDS];
-    Point3D[][] vects = new Point3D[NUM_BOIDS][NUM_BOIDS];
+    private int frameCount = 0;
+
+    Flock flock = new Flock(INIT_BOIDS, FIELD_SIZE_X, FIELD_SIZE_Y, FIELD_SIZE_Z);
+    FlockSimulation simulation;
+    ShardCoordinator shards;
+    // One random stream per boid, so a seed gives the same flock every time
+    BoidRandom random;
+    // Where the snapshots come from: the simulation, or a recording played back
+    SnapshotSource source;
+    TrajectoryPlayer player;
+    private boolean recording = false;
+    private boolean exporting = false;
+    private int exportCapacity;
+    private Path exportFile;
+    private Path replayFile = Paths.get(RECORDING_FILE);
+    // One figure per boid drawn, in index order. Figures for boids that were
+    // removed wait in the pool, still built, until boids are added again.
+    final List<Boid> boids = new ArrayList<>();
+    private final Deque<Boid> boidPool = new ArrayDeque<>();
+    BoidMesh boidMesh;
+    // Boid colors, shared by every figure and the mesh
+    private final HuePalette palette = HuePalette.get(360, 0.6, 1.0, 1.0, Color.GRAY);
+    private final PhongMaterial noneMat = new PhongMaterial(BOID_COLOR);
+    BoidLod lod = new BoidLod(LOD_FULL_PIXELS, LOD_MARKER_PIXELS);
+    private final TriangleMesh lowMesh = BoidMesh.createModelMesh();
+    private final TriangleMesh markerMesh = BoidLod.createMarkerMesh();
+    private final int[] lodCounts = new int[BoidLod.Level.values().length];
+
+    private PerspectiveCamera camera;
+    private SubScene mainScene;
+    private Group content;
+
+    // The two most recent snapshots, drawn interpolated
+    private Snapshot prevSnapshot, curSnapshot;
 
     Metric breakCount = new Metric("Break");
+    Metric allocBytes = new Metric("Alloc");
+
+    // Time per phase: the first two on the simulation thread, the rest on this one
+    RollingHistogram neighborTime = new RollingHistogram("Neighbors", TIMING_WINDOW);
+    RollingHistogram steeringTime = new RollingHistogram("Steering", TIMING_WINDOW);
+    RollingHistogram drawTime = new RollingHistogram("Draw", TIMING_WINDOW);
+    RollingHistogram colorTime = new RollingHistogram("Color", TIMING_WINDOW);
+    private final RollingHistogram[] phases = { neighborTime, steeringTime, drawTime, colorTime };
+    private final Text[] phaseText = new Text[phases.length];
+    private final Text breakText = new Text();
+    private final Text allocText = new Text();
+    private final Text lodText = new Text();
+    private final Text stepText = new Text();
+    private final Text flocksText = new Text();
+    private final Text collisionText = new Text();
+    private final Text trajectoryText = new Text();
+    private final Slider seekSlider = new Slider(0, 1, 0);
+    private boolean seekUpdating = false;
 
     SimpleBooleanProperty isCenter = new SimpleBooleanProperty(true);
+    SimpleBooleanProperty isMesh = new SimpleBooleanProperty(false);
+    SimpleBooleanProperty isNearest = new SimpleBooleanProperty(false);
+    SimpleBooleanProperty isBarnesHut = new SimpleBooleanProperty(false);
+    SimpleBooleanProperty isFlockColor = new SimpleBooleanProperty(false);
+    SimpleBooleanProperty isObstacles = new SimpleBooleanProperty(false);
+
+    // Solid shapes the boids steer around, and the same baked for the flock, null
+    // until the bake is done
+    private final List<Shape3D> obstacles = new ArrayList<>();
+    private DistanceField obstacleField;
+    // Reads the collisions the flock finds, off the simulation thread
+    private CollisionMonitor collisionMonitor;
+    SimpleBooleanProperty isFused = new SimpleBooleanProperty(false);
+    SimpleBooleanProperty isPipelined = new SimpleBooleanProperty(false);
+    SimpleBooleanProperty isMultiRate = new SimpleBooleanProperty(false);
+    SimpleBooleanProperty isLod = new SimpleBooleanProperty(true);
+    SimpleBooleanProperty isGovernor = new SimpleBooleanProperty(true);
+
+    // Lowers quality when frames run late, see FrameGovernor
+    FrameGovernor governor = new FrameGovernor((long) (1.0e9 / FRAMES_PER_SECOND));
+    private FrameGovernor.Level quality = FrameGovernor.Level.FULL;
+    private final Text qualityText = new Text();
+
+    private final DoubleProperty boidSize = new SimpleDoubleProperty(INIT_BOID_SIZE);
+
+    private final IntegerProperty population = new SimpleIntegerProperty(INIT_BOIDS);
+
+    /**
+     * Number of boids asked for. The simulation picks it up on its next step, and
+     * the figures follow when that step is drawn.
+     */
+    public int getPopulation() {
+        return population.get();
+    }
+
+    /**
+     * Only the slider stops at MAX_BOIDS, the flock takes any number.
+     */
+    public void setPopulation(int value) {
+        population.set(Math.max(MIN_BOIDS, value));
+    }
+
+    public IntegerProperty populationProperty() {
+        return population;
+    }
 
     private final DoubleProperty pullScale = new SimpleDoubleProperty(INIT_PULL_SCALE);
 
@@ -112,6 +287,8 @@ public class Boids3D extends Application {
 
     private final DoubleProperty view = new SimpleDoubleProperty(INIT_VIEW);
 
+    private final DoubleProperty viewAngle = new SimpleDoubleProperty(INIT_VIEW_ANGLE);
+
     public static void main(String[] args) {
         launch(args);
     }
@@ -124,11 +301,11 @@ public class Boids3D extends Application {
         scene.setFill(FILL_COLOR);
 
         Group world = new Group();
-        SubScene mainScene = new SubScene(world, WIDTH, HEIGHT, true, SceneAntialiasing.BALANCED);
+        mainScene = new SubScene(world, WIDTH, HEIGHT, true, SceneAntialiasing.BALANCED);
         scene.setFill(FILL_COLOR);
 
         // Create camera
-        PerspectiveCamera camera = new PerspectiveCamera(true);
+        camera = new PerspectiveCamera(true);
         camera.setTranslateZ(-1.5 * FIELD_SIZE_Z);
         camera.setNearClip(0.1); // Setting this to zero disables the Z buffer.
         camera.setFarClip(5.0 * FIELD_SIZE_Z);
@@ -143,25 +320,53 @@ public class Boids3D extends Application {
         world.getChildren().addAll(light1, light2);
 
         // Create content
-        Group content = new Group();
+        content = new Group();
+        OrbitController orbit = new OrbitController(content);
 
         // Create border
         Node border = createBorder();
         border.setVisible(true);
         content.getChildren().add(border);
 
-        // Create boids
-        for (int i = 0; i < NUM_BOIDS; i++) {
-            Boid boid = createBoid(i);
-            boids[i] = boid;
-            content.getChildren().add(boid.getNode());
+        // Create boids, simulated on all cores
+        String seed = getParameters().getNamed().get(SEED_PARAMETER);
+        random = new BoidRandom(seed == null ? BoidRandom.newSeed() : Long.parseLong(seed), INIT_BOIDS);
+        System.out.println("Seed: " + random.getSeed());
+        noneMat.setSpecularColor(Color.GRAY);
+        flock.setParallelism(Runtime.getRuntime().availableProcessors());
+        for (int i = 0; i < INIT_BOIDS; i++) {
+            createBoid(i);
         }
 
-        // Add obstacles
-//        Cylinder c1 = new Cylinder(50, FIELD_SIZE_Y);
-//        PhongMaterial mat = new PhongMaterial(Color.BEIGE);
-//        c1.setMaterial(mat);
-//        content.getChildren().add(c1);
+        // All boids in one mesh, as an alternative to a figure per boid
+        boidMesh = new BoidMesh(INIT_BOIDS, palette, BOID_COLOR);
+        boidMesh.getNode().setVisible(false);
+        content.getChildren().add(boidMesh.getNode());
+        isMesh.addListener((obs, oldValue, newValue) -> {
+            boidMesh.getNode().setVisible(newValue);
+            for (Boid boid : boids) {
+                boid.getFigure().setVisible(!newValue);
+            }
+        });
+
+        // Add obstacles, hidden until switched on
+        Cylinder c1 = new Cylinder(50, FIELD_SIZE_Y);
+        Sphere s1 = new Sphere(150);
+        s1.setTranslateX(-FIELD_SIZE_X / 4.0);
+        s1.setTranslateZ(FIELD_SIZE_Z / 4.0);
+        Box b1 = new Box(300, 150, 500);
+        b1.setTranslateX(FIELD_SIZE_X / 4.0);
+        b1.setTranslateZ(-FIELD_SIZE_Z / 4.0);
+        b1.setRotationAxis(Rotate.Y_AXIS);
+        b1.setRotate(30.0);
+        PhongMaterial mat = new PhongMaterial(Color.BEIGE);
+        obstacles.addAll(List.of(c1, s1, b1));
+        for (Shape3D obstacle : obstacles) {
+            obstacle.setMaterial(mat);
+            obstacle.visibleProperty().bind(isObstacles);
+        }
+        content.getChildren().addAll(obstacles);
+        bakeObstacles();
 
         // Add content to world
         world.getChildren().add(content);
@@ -169,6 +374,68 @@ public class Boids3D extends Application {
         // Create UI
         Node ui = createUI();
 
+        // Pass parameter changes on to the simulation thread
+        flock.setView(view.get());
+        flock.setPullScale(getPullScale());
+        flock.setPushScale(getPushScale());
+        flock.setCenter(isCenter.get());
+        flock.setViewAngle(viewAngle.get());
+        flock.setNumNearest(NUM_NEAREST);
+        flock.setKernel(isFused.get() ? Flock.Kernel.FUSED : Flock.Kernel.RULES);
+        flock.setPipelined(isPipelined.get());
+        flock.setMaxInterval(isMultiRate.get() ? Flock.MAX_INTERVAL : 1);
+        flock.setFocusRadius(FULL_RATE_DISTANCE);
+        flock.setClustering(true);
+        flock.setObstacles(isObstacles.get() ? obstacleField : null);
+        collisionMonitor = new CollisionMonitor(new CollisionRing());
+        collisionMonitor.setLogging(Boolean.parseBoolean(getParameters().getNamed().get(LOG_COLLISIONS_PARAMETER)));
+        flock.setCollisionEvents(collisionMonitor.getRing());
+        view.addListener((obs, oldValue, newValue) -> flock.setView(newValue.doubleValue() * quality.getViewScale()));
+        pullScale.addListener((obs, oldValue, newValue) -> flock.setPullScale(newValue.doubleValue()));
+        pushScale.addListener((obs, oldValue, newValue) -> flock.setPushScale(newValue.doubleValue()));
+        isCenter.addListener((obs, oldValue, newValue) -> flock.setCenter(newValue));
+        viewAngle.addListener((obs, oldValue, newValue) -> flock.setViewAngle(newValue.doubleValue()));
+        isNearest.addListener((obs, oldValue, newValue) -> updateNeighbors());
+        isBarnesHut.addListener((obs, oldValue, newValue) -> updateNeighbors());
+        isObstacles.addListener((obs, oldValue, newValue) -> flock.setObstacles(newValue ? obstacleField : null));
+        isFused.addListener(
+            (obs, oldValue, newValue) -> flock.setKernel(newValue ? Flock.Kernel.FUSED : Flock.Kernel.RULES));
+        isPipelined.addListener((obs, oldValue, newValue) -> flock.setPipelined(newValue));
+        isMultiRate.addListener((obs, oldValue, newValue) -> flock.setMaxInterval(newValue ? Flock.MAX_INTERVAL : 1));
+        population.addListener((obs, oldValue, newValue) -> {
+            resize(newValue.intValue());
+            if (exporting && newValue.intValue() > exportCapacity) {
+                stopExport();
+                startExport();
+            }
+        });
+
+        // Start the simulation, here or spread over shard processes
+        String numShards = getParameters().getNamed().get(SHARDS_PARAMETER);
+        if (numShards != null) {
+            int count = Integer.parseInt(numShards);
+            int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / count);
+            shards = ShardCoordinator.launch(count, threads, FIELD_SIZE_X, FIELD_SIZE_Y, FIELD_SIZE_Z);
+            flock.setParallelism(1);
+            simulation = new FlockSimulation(flock, shards, STEPS_PER_SECOND);
+        } else {
+            simulation = new FlockSimulation(flock, STEPS_PER_SECOND);
+        }
+        simulation.start();
+        source = simulation;
+        String export = getParameters().getNamed().get(EXPORT_PARAMETER);
+        Path shm = Paths.get(SHARED_MEMORY_DIR);
+        exportFile = export != null ? Paths.get(export)
+            : (Files.isDirectory(shm) ? shm.resolve(EXPORT_FILE) : Paths.get(EXPORT_FILE));
+        if (export != null) {
+            startExport();
+        }
+        String replay = getParameters().getNamed().get("replay");
+        if (replay != null) {
+            replayFile = Paths.get(replay);
+            startReplay();
+        }
+
         // Add all to root node
         root.getChildren().addAll(mainScene, ui);
 
@@ -183,10 +450,13 @@ public class Boids3D extends Application {
                 if (focusDirty) {
                     world.requestFocus();
                 }
+                if (isGovernor.get() && governor.onFrame(now)) {
+                    setQuality(governor.getLevel());
+                }
                 if (pause) {
-                    content.getTransforms().add(new Rotate(-0.3, Rotate.Y_AXIS));
+                    orbit.rotate(-0.3, Rotate.Y_AXIS);
                 } else {
-                    onUpdate();
+                    onUpdate(now);
                 }
             }
         };
@@ -195,16 +465,16 @@ public class Boids3D extends Application {
         stage.addEventHandler(KeyEvent.KEY_PRESSED, event -> {
             switch (event.getCode()) {
             case UP:
-                content.getTransforms().add(new Rotate(10, content.parentToLocal(Rotate.X_AXIS)));
+                orbit.rotateParent(10, Rotate.X_AXIS);
                 break;
             case DOWN:
-                content.getTransforms().add(new Rotate(-10, content.parentToLocal(Rotate.X_AXIS)));
+                orbit.rotateParent(-10, Rotate.X_AXIS);
                 break;
             case LEFT:
-                content.getTransforms().add(new Rotate(-10, Rotate.Y_AXIS));
+                orbit.rotate(-10, Rotate.Y_AXIS);
                 break;
             case RIGHT:
-                content.getTransforms().add(new Rotate(10, Rotate.Y_AXIS));
+                orbit.rotate(10, Rotate.Y_AXIS);
                 break;
             case W:
                 camera.setTranslateZ(camera.getTranslateZ() + 50);
@@ -212,6 +482,9 @@ public class Boids3D extends Application {
             case S:
                 camera.setTranslateZ(camera.getTranslateZ() - 50);
                 break;
+            case M:
+                isMesh.set(!isMesh.get());
+                break;
             case B:
                 border.setVisible(!border.isVisible());
                 break;
@@ -222,27 +495,44 @@ public class Boids3D extends Application {
                 up = !up;
                 break;
             case DIGIT3:
-                pov = !pov;
-                if (pov) {
-                    povBoid = (int) (NUM_BOIDS * Math.random());
-                    boids[povBoid].addNode(camera);
-                    camera.setTranslateX(0.0);
-                    camera.setTranslateY(-150.0);
-                    camera.setTranslateZ(50.0);
-                    camera.getTransforms().add(new Rotate(-90.0, Rotate.X_AXIS));
-                    camera.setFieldOfView(90.0);
-
+                setPov(!pov);
+                break;
+            case EQUALS:
+            case ADD:
+                setPopulation(getPopulation() + BOIDS_STEP);
+                break;
+            case MINUS:
+            case SUBTRACT:
+                setPopulation(getPopulation() - BOIDS_STEP);
+                break;
+            case R:
+                if (recording) {
+                    stopRecording();
                 } else {
-                    boids[povBoid].removeNode(camera);
-                    camera.getTransforms().clear();
-                    camera.setTranslateX(0.0);
-                    camera.setTranslateY(0.0);
-                    camera.setTranslateZ(-1.5 * FIELD_SIZE_Z);
-                    camera.setFieldOfView(30.0);
+                    startRecording();
+                }
+                break;
+            case E:
+                if (exporting) {
+                    stopExport();
+                } else {
+                    startExport();
+                }
+                break;
+            case P:
+                if (player != null) {
+                    stopReplay();
+                } else {
+                    startReplay();
                 }
                 break;
             case SPACE:
                 pause = !pause;
+                if (player != null) {
+                    player.setPaused(pause);
+                } else {
+                    simulation.setPaused(pause);
+                }
                 break;
             case ESCAPE:
                 Platform.exit();
@@ -253,6 +543,31 @@ public class Boids3D extends Application {
         });
     }
 
+    // Ride along with a random boid, or go back to the orbit view
+    private void setPov(boolean value) {
+        if (value == pov || (value && boids.isEmpty())) {
+            return;
+        }
+        pov = value;
+        if (pov) {
+            povBoid = random.getCommon().nextInt(boids.size());
+            boids.get(povBoid).addNode(camera);
+            camera.setTranslateX(0.0);
+            camera.setTranslateY(-150.0);
+            camera.setTranslateZ(50.0);
+            camera.getTransforms().add(new Rotate(-90.0, Rotate.X_AXIS));
+            camera.setFieldOfView(90.0);
+
+        } else {
+            boids.get(povBoid).removeNode(camera);
+            camera.getTransforms().clear();
+            camera.setTranslateX(0.0);
+            camera.setTranslateY(0.0);
+            camera.setTranslateZ(-1.5 * FIELD_SIZE_Z);
+            camera.setFieldOfView(30.0);
+        }
+    }
+
     private Node createUI() {
         GridPane grid = new GridPane();
 //        TitledPane main = new TitledPane("BOID World", grid);
@@ -284,14 +599,91 @@ public class Boids3D extends Application {
         check0.setSelected(isCenter.get());
         isCenter.bind(check0.selectedProperty());
 
+        CheckBox check1 = new CheckBox("Single mesh");
+        check1.selectedProperty().bindBidirectional(isMesh);
+
+        CheckBox check2 = new CheckBox("Nearest " + NUM_NEAREST + " only");
+        check2.selectedProperty().bindBidirectional(isNearest);
+
+        CheckBox check3 = new CheckBox("Fused steering");
+        check3.selectedProperty().bindBidirectional(isFused);
+
+        // Hue by which flock a boid is in, rather than by how many neighbors it has
+        CheckBox check8 = new CheckBox("Color by flock");
+        check8.selectedProperty().bindBidirectional(isFlockColor);
+
+        CheckBox check9 = new CheckBox("Obstacles");
+        check9.selectedProperty().bindBidirectional(isObstacles);
+
+        // The shards steer without obstacles and don't find flocks
+        if (getParameters().getNamed().containsKey(SHARDS_PARAMETER)) {
+            check8.setText("Color by flock (not with shards)");
+            check8.setDisable(true);
+            check9.setText("Obstacles (not with shards)");
+            check9.setDisable(true);
+        }
+
+        // Far groups of boids count as one, for big view radii, see Octree
+        CheckBox check7 = new CheckBox("Barnes-Hut far field");
+        check7.selectedProperty().bindBidirectional(isBarnesHut);
+
+        // Builds the next step's grid while this one is steered, see Flock
+        CheckBox check6 = new CheckBox("Pipelined grid");
+        check6.selectedProperty().bindBidirectional(isPipelined);
+
+        // Far and steady boids are steered less often, see Flock.setMaxInterval()
+        CheckBox check10 = new CheckBox("Multi-rate steering");
+        check10.selectedProperty().bindBidirectional(isMultiRate);
+
+        CheckBox check4 = new CheckBox("Level of detail");
+        check4.selectedProperty().bindBidirectional(isLod);
+
+        CheckBox check5 = new CheckBox("Frame budget governor");
+        check5.selectedProperty().bindBidirectional(isGovernor);
+        isGovernor.addListener((obs, oldValue, newValue) -> {
+            governor.reset();
+            setQuality(FrameGovernor.Level.FULL);
+        });
+
+        // Only while replaying
+        seekSlider.setDisable(true);
+        seekSlider.valueProperty().addListener((obs, oldValue, newValue) -> {
+            if (player != null && !seekUpdating) {
+                player.seek(newValue.longValue());
+            }
+        });
+
+        Text name0 = new Text("Boids");
+        Slider slide0 = new Slider(MIN_BOIDS, MAX_BOIDS, getPopulation());
+        slide0.setMajorTickUnit(1000);
+        slide0.setMinorTickCount(3);
+        slide0.setShowTickMarks(true);
+        slide0.setShowTickLabels(true);
+        slide0.setBlockIncrement(BOIDS_STEP);
+        // Resize once the slider is let go of, not on every value it passes through
+        slide0.valueChangingProperty().addListener((obs, oldValue, newValue) -> {
+            if (!newValue) {
+                setPopulation((int) slide0.getValue());
+            }
+        });
+        slide0.valueProperty().addListener((obs, oldValue, newValue) -> {
+            if (!slide0.isValueChanging()) {
+                setPopulation(newValue.intValue());
+            }
+        });
+        // Set from the API past the end of the slider, stretch the slider rather
+        // than let it pull the population back
+        population.addListener((obs, oldValue, newValue) -> {
+            slide0.setMax(Math.max(slide0.getMax(), newValue.intValue()));
+            slide0.setValue(newValue.intValue());
+        });
+        Text value0 = new Text();
+        value0.textProperty().bind(population.asString());
+
         Text name1 = new Text("Size");
         Slider slide1 = new Slider(MIN_BOID_SIZE, MAX_BOID_SIZE, INIT_BOID_SIZE);
         slide1.setMinWidth(200);
-        for (int i = 0; i < NUM_BOIDS; i++) {
-            boids[i].getFigure().scaleXProperty().bind(slide1.valueProperty());
-            boids[i].getFigure().scaleYProperty().bind(slide1.valueProperty());
-            boids[i].getFigure().scaleZProperty().bind(slide1.valueProperty());
-        }
+        boidSize.bind(slide1.valueProperty());
         Text value1 = new Text();
         value1.textProperty().bind(slide1.valueProperty().asString("%1.2f"));
 
@@ -328,9 +720,24 @@ public class Boids3D extends Application {
         Text value4 = new Text();
         value4.textProperty().bind(slide4.valueProperty().asString("%1.0f"));
 
+        Text name5 = new Text("Vision");
+        Slider slide5 = new Slider(MIN_VIEW_ANGLE, MAX_VIEW_ANGLE, INIT_VIEW_ANGLE);
+        slide5.setMajorTickUnit(90);
+        slide5.setMinorTickCount(2);
+        slide5.setShowTickMarks(true);
+        slide5.setShowTickLabels(true);
+        slide5.setSnapToTicks(false);
+        viewAngle.bind(slide5.valueProperty());
+        Text value5 = new Text();
+        value5.textProperty().bind(slide5.valueProperty().asString("%1.0f"));
+
         int row = 0;
         grid.add(bbar, 0, row, 2, 1);
         row++;
+        grid.add(name0, 0, row);
+        grid.add(value0, 1, row++);
+        grid.add(slide0, 0, row, 2, 1);
+        row++;
         grid.add(name1, 0, row);
         grid.add(value1, 1, row++);
         grid.add(slide1, 0, row, 2, 1);
@@ -339,6 +746,10 @@ public class Boids3D extends Application {
         grid.add(value4, 1, row++);
         grid.add(slide4, 0, row, 2, 1);
         row++;
+        grid.add(name5, 0, row);
+        grid.add(value5, 1, row++);
+        grid.add(slide5, 0, row, 2, 1);
+        row++;
         grid.add(name2, 0, row);
         grid.add(value2, 1, row++);
         grid.add(slide2, 0, row, 2, 1);
@@ -348,6 +759,43 @@ public class Boids3D extends Application {
         grid.add(slide3, 0, row, 2, 1);
         row++;
         grid.add(check0, 0, row, 2, 1);
+        row++;
+        grid.add(check9, 0, row, 2, 1);
+        row++;
+        grid.add(check1, 0, row, 2, 1);
+        row++;
+        grid.add(check2, 0, row, 2, 1);
+        row++;
+        grid.add(check7, 0, row, 2, 1);
+        row++;
+        grid.add(check3, 0, row, 2, 1);
+        row++;
+        grid.add(check6, 0, row, 2, 1);
+        row++;
+        grid.add(check10, 0, row, 2, 1);
+        row++;
+        grid.add(check4, 0, row, 2, 1);
+        row++;
+        grid.add(check8, 0, row, 2, 1);
+        row++;
+        grid.add(check5, 0, row, 2, 1);
+        row++;
+        grid.add(qualityText, 0, row++, 2, 1);
+        grid.add(new Text("Phase (ms)"), 0, row);
+        grid.add(new Text("p50 / p99 / max"), 1, row++);
+        for (int i = 0; i < phases.length; i++) {
+            phaseText[i] = new Text();
+            grid.add(new Text(phases[i].getName()), 0, row);
+            grid.add(phaseText[i], 1, row++);
+        }
+        grid.add(breakText, 0, row++, 2, 1);
+        grid.add(allocText, 0, row++, 2, 1);
+        grid.add(lodText, 0, row++, 2, 1);
+        grid.add(stepText, 0, row++, 2, 1);
+        grid.add(flocksText, 0, row++, 2, 1);
+        grid.add(collisionText, 0, row++, 2, 1);
+        grid.add(trajectoryText, 0, row++, 2, 1);
+        grid.add(seekSlider, 0, row, 2, 1);
 
         return grid;
     }
@@ -379,83 +827,383 @@ public class Boids3D extends Application {
         return items;
     }
 
-    private void onUpdate() {
-        breakCount.reset();
+    @Override
+    public void stop() {
+        if (player != null) {
+            stopReplay();
+        }
+        if (simulation != null) {
+            if (recording) {
+                stopRecording();
+            }
+            if (exporting) {
+                stopExport();
+            }
+            simulation.stop();
+        }
+        if (shards != null) {
+            // A step still in flight just fails, the shard processes exit either way
+            shards.close();
+        }
+        if (collisionMonitor != null) {
+            collisionMonitor.close();
+        }
+    }
+
+    private void startRecording() {
+        if (player != null) {
+            System.err.println("Not recording during a replay");
+            return;
+        }
+        try {
+            Path file = Paths.get(RECORDING_FILE);
+            // Posted after any resize, so the flock has this count when it starts
+            simulation.startRecording(new TrajectoryRecorder(file, getPopulation(), simulation.getStepNanos(),
+                FIELD_SIZE_X, FIELD_SIZE_Y, FIELD_SIZE_Z));
+            replayFile = file;
+            recording = true;
+        } catch (IOException e) {
+            System.err.println("Could not record to " + RECORDING_FILE + ": " + e.getMessage());
+        }
+    }
+
+    private void stopRecording() {
+        simulation.stopRecording();
+        recording = false;
+    }
 
-        computeVects();
+    // Room for the flock to grow, the export starts over in a bigger file if it
+    // grows past that
+    private void startExport() {
+        int capacity = Math.max(BOIDS_STEP, EXPORT_HEADROOM * getPopulation());
+        try {
+            simulation.startExport(new SharedStateExporter(exportFile, capacity, SharedStateExporter.DEFAULT_SLOTS,
+                simulation.getStepNanos(), FIELD_SIZE_X, FIELD_SIZE_Y, FIELD_SIZE_Z));
+            exporting = true;
+            exportCapacity = capacity;
+            System.out.println("Exporting to " + exportFile + ", room for " + capacity + " boids");
+        } catch (IOException e) {
+            System.err.println("Could not export to " + exportFile + ": " + e.getMessage());
+        }
+    }
+
+    private void stopExport() {
+        simulation.stopExport();
+        exporting = false;
+    }
+
+    // Draw from the recording instead of the simulation, which waits paused
+    private void startReplay() {
+        if (recording) {
+            stopRecording();
+        }
+        TrajectoryReader reader;
+        try {
+            reader = new TrajectoryReader(replayFile);
+        } catch (IOException e) {
+            System.err.println("Could not replay " + replayFile + ": " + e.getMessage());
+            return;
+        }
+        if (reader.getFrameCount() == 0) {
+            System.err.println("Nothing to replay in " + replayFile);
+            closeQuietly(reader);
+            return;
+        }
+        simulation.setPaused(true);
+        player = new TrajectoryPlayer(reader);
+        player.setPaused(pause);
+        player.start();
+        source = player;
+        curSnapshot = null;
+        seekUpdating = true;
+        seekSlider.setMax(reader.getFrameCount() - 1);
+        seekSlider.setValue(0);
+        seekUpdating = false;
+        seekSlider.setDisable(false);
+    }
+
+    private void stopReplay() {
+        player.stop();
+        closeQuietly(player.getReader());
+        player = null;
+        source = simulation;
+        curSnapshot = null;
+        simulation.setPaused(pause);
+        seekSlider.setDisable(true);
+    }
+
+    private static void closeQuietly(TrajectoryReader reader) {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            System.err.println("Could not close recording: " + e.getMessage());
+        }
+    }
+
+    // The simulation, or the replay, runs on its own thread. Here we only pick up
+    // the latest snapshot and draw the boids part way between it and the one before.
+    private void onUpdate(long now) {
+        Snapshot latest = source.getLatest();
+        if (latest != curSnapshot) {
+            boolean jump = curSnapshot == null || latest.getCount() != curSnapshot.getCount()
+                || latest.getStep() < curSnapshot.getStep()
+                || latest.getStep() - curSnapshot.getStep() > MAX_LERP_STEPS;
+            prevSnapshot = jump ? latest : curSnapshot;
+            curSnapshot = latest;
+            // Too far behind to hold on to both, start over from the latest
+            if (!source.retain(prevSnapshot, curSnapshot)) {
+                prevSnapshot = curSnapshot;
+            }
+            onStep(latest);
+            if (latest.getCount() != boids.size()) {
+                syncPopulation(latest.getCount());
+            }
+        }
+        int count = boids.size();
+
+        // One step behind the simulation, so there is always a next snapshot
+        double alpha = (now - curSnapshot.getTime()) / (double) source.getStepNanos();
+        alpha = Math.max(0.0, Math.min(1.0, alpha));
 
         int maxNearby = 0;
-        for (int i = 0; i < NUM_BOIDS; i++) {
-            boids[i].update();
-            maxNearby = Math.max(maxNearby, boids[i].getNumNearby());
+        for (int i = 0; i < count; i++) {
+            maxNearby = Math.max(maxNearby, curSnapshot.getNumNearby(i));
         }
         numColors = maxNearby;
-        for (int i = 0; i < NUM_BOIDS; i++) {
-            boids[i].updateColor();
+
+        FrameEvent event = FRAME_EVENT.isEnabled() ? new FrameEvent() : null;
+        if (event != null) {
+            event.begin();
         }
+        long drawNanos, colorNanos;
+        if (isMesh.get()) {
+            long start = System.nanoTime();
+            drawMesh(alpha);
+            // The camera rides on the figure's node
+            if (pov) {
+                boids.get(povBoid).interpolate(prevSnapshot, curSnapshot, alpha);
+                boids.get(povBoid).draw();
+            }
+            long drawn = System.nanoTime();
+            colorMesh();
+            long colored = System.nanoTime();
+            boidMesh.update();
+            drawNanos = (drawn - start) + (System.nanoTime() - colored);
+            colorNanos = colored - drawn;
+        } else {
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                boids.get(i).interpolate(prevSnapshot, curSnapshot, alpha);
+                boids.get(i).draw();
+            }
+            // After drawing, so a camera riding on a boid is already in place
+            updateLod();
+            long drawn = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                boids.get(i).updateColor();
+            }
+            drawNanos = drawn - start;
+            colorNanos = System.nanoTime() - drawn;
+        }
+        drawTime.record(drawNanos);
+        colorTime.record(colorNanos);
+        if (event != null) {
+            event.end();
+            event.boids = count;
+            event.mesh = isMesh.get();
+            event.drawNanos = drawNanos;
+            event.colorNanos = colorNanos;
+            event.commit();
+        }
+        updateFocus();
         updateUI();
     }
 
-    private void updateUI() {
+    // Keep the boids around the viewer steered at the full rate
+    private void updateFocus() {
+        Point3D eye = content.sceneToLocal(camera.localToScene(Point3D.ZERO));
+        flock.setFocus(eye.getX(), eye.getY(), eye.getZ());
+        flock.setFocusBoid(pov ? povBoid : -1);
     }
 
-    private void scramble() {
-        for (int i = 0; i < NUM_BOIDS; i++) {
-            Point3D vec = new Point3D(Math.random() - 0.5, Math.random() - 0.5, Math.random() - 0.5).normalize();
-            boids[i].setVelocity(vec.multiply(Math.random() * (MAX_SPEED - MIN_SPEED) + MIN_SPEED));
+    // Pick each figure's level of detail from its distance to the camera
+    private void updateLod() {
+        int count = boids.size();
+        Arrays.fill(lodCounts, 0);
+        // The governor turns it on when it has to
+        if (!isLod.get() && quality.getLodScale() == 1.0) {
+            for (int i = 0; i < count; i++) {
+                boids.get(i).setLevel(BoidLod.Level.FULL);
+            }
+            lodCounts[BoidLod.Level.FULL.ordinal()] = count;
+            return;
+        }
+        lod.update(camera, mainScene.getWidth(), mainScene.getHeight());
+        Point3D eye = content.sceneToLocal(camera.localToScene(Point3D.ZERO));
+        double span = BOID_SPAN * boidSize.get();
+        for (int i = 0; i < count; i++) {
+            Point3D position = boids.get(i).getPosition();
+            double dx = position.getX() - eye.getX();
+            double dy = position.getY() - eye.getY();
+            double dz = position.getZ() - eye.getZ();
+            BoidLod.Level level = lod.levelFor(span, Math.sqrt(dx * dx + dy * dy + dz * dz));
+            boids.get(i).setLevel(level);
+            lodCounts[level.ordinal()]++;
         }
     }
 
-    private void computeVects() {
-        for (int i = 0; i < NUM_BOIDS; i++) {
-            for (int j = i; j < NUM_BOIDS; j++) {
-                if (i == j) {
-                    vects[i][j] = Point3D.ZERO;
-                    continue;
-                }
-                Point3D vec = boids[j].getPosition().subtract(boids[i].getPosition());
-                if (vec.getX() > FIELD_SIZE_X / 2.0) {
-                    vec = vec.subtract(FIELD_SIZE_X, 0.0, 0.0);
-                }
-                // Wrap X and Z
-                double posX = vec.getX();
-                double maxX = FIELD_SIZE_X;
-                if (posX > maxX / 2.0) {
-                    vec = vec.subtract(maxX, 0.0, 0.0);
-                } else if (posX < -maxX / 2.0) {
-                    vec = vec.add(maxX, 0.0, 0.0);
-                }
-                double posZ = vec.getZ();
-                double maxZ = FIELD_SIZE_Z;
-                if (posZ > maxZ / 2.0) {
-                    vec = vec.subtract(0.0, 0.0, maxZ);
-                } else if (posZ < -maxZ / 2.0) {
-                    vec = vec.add(0.0, 0.0, maxZ);
-                }
+    // Write every boid's pose into the one mesh, sent over with the colors in one go
+    private void drawMesh(double alpha) {
+        Snapshot from = prevSnapshot;
+        Snapshot to = curSnapshot;
+        double scale = boidSize.get();
+        int count = boids.size();
+        for (int i = 0; i < count; i++) {
+            double x = lerpWrap(from.getX(i), to.getX(i), alpha, FIELD_SIZE_X);
+            double y = lerp(from.getY(i), to.getY(i), alpha);
+            double z = lerpWrap(from.getZ(i), to.getZ(i), alpha, FIELD_SIZE_Z);
+            double dx = lerp(from.getVX(i), to.getVX(i), alpha);
+            double dy = lerp(from.getVY(i), to.getVY(i), alpha);
+            double dz = lerp(from.getVZ(i), to.getVZ(i), alpha);
+            boidMesh.setPose(i, x, y, z, dx, dy, dz, scale, up);
+        }
+    }
 
-                // Set vectors for both boids
-                vects[i][j] = vec;
-                vects[j][i] = vec.multiply(-1.0);
-                if (vec.magnitude() < (boids[i].getSize() + boids[j].getSize() / 2.0)) {
-                    System.out.println("BOOM!");
-                }
+    private void colorMesh() {
+        int count = boids.size();
+        for (int i = 0; i < count; i++) {
+            boidMesh.setHue(i, hueOf(curSnapshot, i));
+        }
+    }
+
+    // Hue in degrees for boid i, or -1 for the no-neighbor color. By flock when
+    // the snapshot has them, with boids on their own left plain.
+    private double hueOf(Snapshot snapshot, int i) {
+        if (isFlockColor.get() && snapshot.hasClusters()) {
+            if (snapshot.getClusterSize(i) < 2) {
+                return -1.0;
             }
+            return (snapshot.getClusterId(i) * GOLDEN_ANGLE) % 360.0;
+        }
+        int numNearby = snapshot.getNumNearby(i);
+        if ((numColors == 0) || (numNearby == 0)) {
+            return -1.0;
         }
+        return (360.0 / numColors) * numNearby;
+    }
+
+    private static double lerp(double from, double to, double alpha) {
+        return from + alpha * (to - from);
+    }
+
+    // Positions wrap on X and Z, so go the short way around
+    private static double lerpWrap(double from, double to, double alpha, double size) {
+        return from + alpha * SpatialGrid.wrap(to - from, size);
     }
 
-    // TODO: Use angle of vision in front of boid
-    private List<Boid> getBoidsInRange(int index, double range) {
-        ArrayList<Boid> res = new ArrayList<>();
-        for (int i = 0; i < NUM_BOIDS; i++) {
-            if (i == index) {
-                continue;
+    private void onStep(Snapshot snapshot) {
+        breakCount.reset();
+        breakCount.add(snapshot.getBreakCount());
+        if (player == null) {
+            // The step itself should not allocate once it is warmed up, shown with
+            // the other metrics rather than printed from here
+            if (snapshot.getStep() > ALLOC_WARMUP) {
+                allocBytes.add(simulation.getStepAllocatedBytes());
             }
-            double dist = vects[index][i].magnitude();
-            if (dist <= range) {
-                res.add(boids[i]);
+            neighborTime.record(snapshot.getNeighborNanos());
+            steeringTime.record(snapshot.getSteeringNanos());
+        }
+    }
+
+    // Bake the obstacles on a thread of their own, the flock goes without them
+    // until they are ready. The shapes are read here, on the FX thread.
+    private void bakeObstacles() {
+        List<Obstacle> placed = ShapeObstacles.toObstacles(obstacles, content);
+        Thread baker = new Thread(() -> {
+            DistanceField field = DistanceField.bake(FIELD_SIZE_X, FIELD_SIZE_Y, FIELD_SIZE_Z, OBSTACLE_SPACING,
+                placed);
+            Platform.runLater(() -> {
+                obstacleField = field;
+                if (isObstacles.get()) {
+                    flock.setObstacles(field);
+                }
+            });
+        }, "Obstacle baker");
+        baker.setDaemon(true);
+        baker.start();
+    }
+
+    // Nearest few wins over Barnes-Hut
+    private void updateNeighbors() {
+        if (isNearest.get()) {
+            flock.setNeighbors(Flock.Neighbors.TOPOLOGICAL);
+        } else if (isBarnesHut.get()) {
+            flock.setNeighbors(Flock.Neighbors.BARNES_HUT);
+        } else {
+            flock.setNeighbors(Flock.Neighbors.METRIC);
+        }
+    }
+
+    // Apply a quality level: level of detail, view radius and simulation rate
+    private void setQuality(FrameGovernor.Level level) {
+        quality = level;
+        lod.setThresholdScale(level.getLodScale());
+        flock.setView(view.get() * level.getViewScale());
+        simulation.setStepsPerSecond(STEPS_PER_SECOND * level.getRateScale());
+    }
+
+    private void updateUI() {
+        if (frameCount++ % UI_REFRESH_FRAMES != 0) {
+            return;
+        }
+        qualityText.setText(String.format("Quality: %s (%.1f ms/frame)", quality, governor.getAverageNanos() / 1.0e6));
+        for (int i = 0; i < phases.length; i++) {
+            RollingHistogram phase = phases[i];
+            phaseText[i].setText(String.format("%5.2f / %5.2f / %5.2f", phase.percentile(0.5) / 1.0e6,
+                phase.percentile(0.99) / 1.0e6, phase.getMax() / 1.0e6));
+        }
+        breakText.setText(breakCount.toString());
+        allocText.setText(allocBytes + " bytes in steps after warm-up");
+        if (isMesh.get()) {
+            lodText.setText("LOD: single mesh");
+        } else {
+            lodText.setText(String.format("LOD full/low/marker: %d/%d/%d", lodCounts[0], lodCounts[1], lodCounts[2]));
+        }
+        if (curSnapshot != null) {
+            stepText.setText(String.format("Step %d, checksum %016x", curSnapshot.getStep(), curSnapshot.getChecksum()));
+            if (curSnapshot.hasClusters()) {
+                flocksText.setText(String.format("Flocks: %d, largest %d", curSnapshot.getNumClusters(),
+                    curSnapshot.getLargestCluster()));
+            } else {
+                flocksText.setText(shards != null ? "Flocks: not with shards" : "Flocks: -");
             }
         }
-        return res;
+        long dropped = collisionMonitor.getDropped();
+        collisionText.setText(String.format("Collisions: %.0f/s, %d total", collisionMonitor.getPerSecond(),
+            collisionMonitor.getTotal()) + (dropped > 0 ? String.format(", %d dropped", dropped) : ""));
+        if (player != null) {
+            trajectoryText.setText(String.format("Replay: frame %d of %d", player.getFrame() + 1,
+                player.getFrameCount()));
+            if (!seekSlider.isValueChanging()) {
+                seekUpdating = true;
+                seekSlider.setValue(player.getFrame());
+                seekUpdating = false;
+            }
+        } else if (recording) {
+            trajectoryText.setText("Recording to " + RECORDING_FILE);
+        } else {
+            trajectoryText.setText("R: record, P: replay, E: export" + (exporting ? " (on)" : ""));
+        }
+    }
+
+    // The new velocities come from each boid's own stream, on the simulation thread
+    private void scramble() {
+        simulation.post(() -> {
+            for (int i = 0; i < flock.getCount(); i++) {
+                Point3D vec = randomVelocity(random.get(i));
+                flock.setVelocity(i, vec.getX(), vec.getY(), vec.getZ());
+            }
+        });
     }
 
     public Node createBorder() throws Exception {
@@ -499,60 +1247,123 @@ public class Boids3D extends Application {
         return item;
     }
 
-    private Point3D randomPoint(double minX, double maxX, double minY, double maxY, double minZ, double maxZ) {
-        double x = (maxX - minX) * Math.random() + minX;
-        double y = (maxY - minY) * Math.random() + minY;
-        double z = (maxZ - minZ) * Math.random() + minZ;
+    private static Point3D randomPoint(SplittableRandom rng, double minX, double maxX, double minY, double maxY,
+        double minZ, double maxZ) {
+        double x = (maxX - minX) * rng.nextDouble() + minX;
+        double y = (maxY - minY) * rng.nextDouble() + minY;
+        double z = (maxZ - minZ) * rng.nextDouble() + minZ;
 
         return new Point3D(x, y, z);
     }
 
+    private static Point3D randomVelocity(SplittableRandom rng) {
+        Point3D vec = new Point3D(rng.nextDouble() - 0.5, rng.nextDouble() - 0.5, rng.nextDouble() - 0.5).normalize();
+        return vec.multiply(rng.nextDouble() * (MAX_SPEED - MIN_SPEED) + MIN_SPEED);
+    }
+
+    // Only before the simulation is started
     private Boid createBoid(int index) {
-        Boid boid = new Boid(index);
-        boid.setPosition(randomPoint(-FIELD_SIZE_X / 2.0, FIELD_SIZE_X / 2.0, -FIELD_SIZE_Y / 2.0, FIELD_SIZE_Y / 2.0,
-            -FIELD_SIZE_Z / 2.0, FIELD_SIZE_Z / 2.0));
-        Point3D vec = new Point3D(Math.random() - 0.5, Math.random() - 0.5, Math.random() - 0.5).normalize();
-        boid.setVelocity(vec.multiply(Math.random() * (MAX_SPEED - MIN_SPEED) + MIN_SPEED));
+        Boid boid = obtainBoid(index);
+        SplittableRandom rng = random.get(index);
+        flock.setSize(index, INIT_BOID_SIZE);
+        boid.setPosition(randomPoint(rng, -FIELD_SIZE_X / 2.0, FIELD_SIZE_X / 2.0, -FIELD_SIZE_Y / 2.0,
+            FIELD_SIZE_Y / 2.0, -FIELD_SIZE_Z / 2.0, FIELD_SIZE_Z / 2.0));
+        boid.setVelocity(randomVelocity(rng));
         boid.draw();
 
         return boid;
     }
 
+    // Boids added while running start just like the first ones, from their own
+    // random streams, on the simulation thread
+    private void resize(int count) {
+        simulation.post(() -> {
+            int from = flock.getCount();
+            flock.setCount(count);
+            for (int i = from; i < count; i++) {
+                SplittableRandom rng = random.get(i);
+                Point3D position = randomPoint(rng, -FIELD_SIZE_X / 2.0, FIELD_SIZE_X / 2.0, -FIELD_SIZE_Y / 2.0,
+                    FIELD_SIZE_Y / 2.0, -FIELD_SIZE_Z / 2.0, FIELD_SIZE_Z / 2.0);
+                Point3D velocity = randomVelocity(rng);
+                flock.setPosition(i, position.getX(), position.getY(), position.getZ());
+                flock.setVelocity(i, velocity.getX(), velocity.getY(), velocity.getZ());
+                flock.setSize(i, INIT_BOID_SIZE);
+            }
+        });
+    }
+
+    // Add or drop figures to match the snapshot being drawn
+    private void syncPopulation(int count) {
+        if (pov && povBoid >= count) {
+            setPov(false);
+        }
+        while (boids.size() < count) {
+            obtainBoid(boids.size());
+        }
+        while (boids.size() > count) {
+            Boid boid = boids.remove(boids.size() - 1);
+            content.getChildren().remove(boid.getNode());
+            boidPool.push(boid);
+        }
+        boidMesh.setCount(count);
+    }
+
+    // A figure from the pool if there is one, added to the scene as boid index
+    private Boid obtainBoid(int index) {
+        Boid boid = boidPool.isEmpty() ? new Boid(index) : boidPool.pop();
+        boid.setIndex(index);
+        boid.getFigure().setVisible(!isMesh.get());
+        boids.add(boid);
+        content.getChildren().add(boid.getNode());
+        return boid;
+    }
+
     private class Boid {
         private Group figure, boid;
+        private Node full, low, marker;
+        private BoidLod.Level level = BoidLod.Level.FULL;
         private int index;
         private Color color = BOID_COLOR;
-        private double size = INIT_BOID_SIZE;
-        final PhongMaterial boidMat = new PhongMaterial();
-//        final PhongMaterial tailMat = new PhongMaterial();
+        // Palette bucket the figure is colored with, or -1 for no neighbors
+        private int bucket = -1;
+        private final Shape3D[] shapes;
+        // Where the boid is drawn, set from the snapshots
         private Point3D position = Point3D.ZERO;
         private Point3D velocity = Point3D.ZERO;
-        private Point3D delta = Point3D.ZERO; // Acceleration
-        private List<Boid> nearbyBoids = null;
+        private int numNearby = 0;
+        private double hue = -1.0;
 
         public Boid(int index) {
             this.index = index;
 
-            boidMat.setDiffuseColor(color);
-            boidMat.setSpecularColor(Color.GRAY);
-            // tailMat.setDiffuseColor(Color.DARKGREEN);
-            // tailMat.setSpecularColor(Color.GRAY);
-
             Sphere body = new Sphere(5);
             body.setScaleY(3);
-            body.setMaterial(boidMat);
             Box wings = new Box(40, 10, 2);
             wings.setTranslateY(2.5);
-            wings.setMaterial(boidMat);
             Box tail = new Box(2, 8, 8);
             tail.setTranslateY(-10);
             tail.setTranslateZ(5);
-            tail.setMaterial(boidMat);
 
-            figure = new Group(Arrays.asList(body, wings, tail));
-            figure.setScaleX(size);
-            figure.setScaleY(size);
-            figure.setScaleZ(size);
+            full = new Group(Arrays.asList(body, wings, tail));
+            // The lower levels share one mesh each across all boids
+            MeshView lowView = new MeshView(lowMesh);
+            lowView.setCullFace(CullFace.NONE);
+            low = lowView;
+            low.setVisible(false);
+            MeshView markerView = new MeshView(markerMesh);
+            markerView.setCullFace(CullFace.NONE);
+            marker = markerView;
+            marker.setVisible(false);
+
+            shapes = new Shape3D[] { body, wings, tail, lowView, markerView };
+            for (Shape3D shape : shapes) {
+                shape.setMaterial(noneMat);
+            }
+
+            figure = new Group(full, low, marker);
+            figure.scaleXProperty().bind(boidSize);
+            figure.scaleYProperty().bind(boidSize);
+            figure.scaleZProperty().bind(boidSize);
 
             boid = new Group(figure);
         }
@@ -565,12 +1376,27 @@ public class Boids3D extends Application {
             return figure;
         }
 
+        public void setLevel(BoidLod.Level value) {
+            if (value == level) {
+                return;
+            }
+            level = value;
+            full.setVisible(value == BoidLod.Level.FULL);
+            low.setVisible(value == BoidLod.Level.LOW);
+            marker.setVisible(value == BoidLod.Level.MARKER);
+        }
+
         public int getIndex() {
             return index;
         }
 
+        // A pooled figure takes on whichever boid it is drawn for next
+        public void setIndex(int value) {
+            index = value;
+        }
+
         public double getSize() {
-            return size;
+            return flock.getSize(index);
         }
 
         public void addNode(Node node) {
@@ -585,248 +1411,58 @@ public class Boids3D extends Application {
             return position;
         }
 
+        // Only before the simulation is started
         public void setPosition(double x, double y, double z) {
+            flock.setPosition(index, x, y, z);
             position = new Point3D(x, y, z);
         }
 
         public void setPosition(Point3D position) {
-            this.position = position;
+            setPosition(position.getX(), position.getY(), position.getZ());
         }
 
         public Point3D getVelocity() {
             return velocity;
         }
 
+        // Only before the simulation is started
         public void setVelocity(double dx, double dy, double dz) {
+            flock.setVelocity(index, dx, dy, dz);
             velocity = new Point3D(dx, dy, dz);
         }
 
         public void setVelocity(Point3D velocity) {
-            this.velocity = velocity;
+            setVelocity(velocity.getX(), velocity.getY(), velocity.getZ());
         }
 
         public int getNumNearby() {
-            if (nearbyBoids == null) {
-                return 0;
-            }
-            return nearbyBoids.size();
-        }
-
-        private Point3D towardCenter() {
-            if (!isCenter.get()) {
-                return Point3D.ZERO;
-            }
-            Point3D vec = position.multiply(-1.0);
-            return truncate(adjust(vec)).multiply(CENTER_SCALE);
-        }
-
-        /*
-         * The toward function according to the spec. The attraction vector is toward
-         * the center of the nearby boids, with a force equal to the inverse square of
-         * the distance.
-         * 
-         * This seems to have interesting "follow the leader" behaviors, but also has
-         * some jerkiness.
-         * 
-         * Note: The subtle difference between toward and avoid is that toward is an
-         * adjusted sum (average) of vectors, while avoid is a sum of adjusted vectors.
-         */
-        private Point3D towardNearby0() {
-            int numNearby = nearbyBoids.size();
-            if (numNearby == 0) {
-                return Point3D.ZERO;
-            }
-            Point3D vec = Point3D.ZERO;
-            for (Boid nearbyBoid : nearbyBoids) {
-                vec = vec.add(vects[index][nearbyBoid.getIndex()]);
-            }
-            vec = adjust(vec.multiply(1.0 / numNearby));
-            return truncate(vec).multiply(getPullScale());
-        }
-
-        /*
-         * My original toward function. It computes the sum of the attraction vectors
-         * (inverse square) to each nearby boid.
-         * 
-         * This seems to result in a much smoother behavior.
-         * 
-         * Note: I'm not sure this is correct. Seems to me that the toward vector and
-         * the avoid vector are exact opposites. If their scales are the same, will they
-         * cancel each other out? The only mitigation I see is the prioritize function,
-         * where one factor can override another if it is strong enough.
-         */
-        private Point3D towardNearby1() {
-            Point3D vec = Point3D.ZERO;
-            for (Boid nearbyBoid : nearbyBoids) {
-                vec = vec.add(adjust(vects[index][nearbyBoid.getIndex()]));
-            }
-            return truncate(vec).multiply(getPullScale());
-        }
-
-        /*
-         * My modified toward function. Similar to the spec version (uses the average
-         * position), but the attraction force is proportional to the distance, rather
-         * than the inverse square.
-         */
-        private Point3D towardNearby2() {
-            Point3D vec = Point3D.ZERO;
-            for (Boid nearbyBoid : nearbyBoids) {
-                vec = vec.add(vects[index][nearbyBoid.getIndex()]);
-            }
-//            vec = vec.normalize();
-            return truncate(vec).multiply(getPullScale());
-        }
-
-        private Point3D avoidNearby() {
-            Point3D vec = Point3D.ZERO;
-            for (Boid nearbyBoid : nearbyBoids) {
-                vec = vec.add(adjust(vects[nearbyBoid.getIndex()][index]));
-            }
-            return truncate(vec).multiply(getPushScale());
+            return numNearby;
         }
 
-        private Point3D matchVelocity() {
-            int numNearby = nearbyBoids.size();
-            if (numNearby == 0) {
-                return Point3D.ZERO;
-            }
-            Point3D vec = Point3D.ZERO;
-            for (Boid nearbyBoid : nearbyBoids) {
-                // TODO: Should this be weighted by the neighbor's proximity?
-                vec = vec.add(nearbyBoid.getVelocity());
-            }
-            vec = vec.multiply(1.0 / numNearby);
-            return truncate(vec).multiply(MATCH_SCALE);
-        }
-
-        private Point3D avoidObsticles() {
-            Point3D vec = Point3D.ZERO;
-            Point3D delta;
-            double dist;
-
-            // top and bottom planes
-            double maxY = FIELD_SIZE_Y / 2.0;
-            dist = maxY - position.getY();
-            if (dist > view.get()) {
-                delta = Point3D.ZERO;
-            } else if (dist > 0.0) {
-                delta = adjust(new Point3D(0.0, -dist, 0.0));
-            } else {
-                delta = new Point3D(0.0, -1.0, 0.0);
-            }
-            vec = vec.add(delta);
-            double minY = -FIELD_SIZE_Y / 2.0;
-            dist = minY - position.getY();
-            if (dist < -view.get()) {
-                delta = Point3D.ZERO;
-            } else if (dist < 0.0) {
-                delta = adjust(new Point3D(0.0, -dist, 0.0));
-            } else {
-                delta = new Point3D(0.0, 1.0, 0.0);
-            }
-            vec = vec.add(delta);
-            return truncate(vec);
-        }
+        // Move part way from one snapshot to the next
+        public void interpolate(Snapshot from, Snapshot to, double alpha) {
+            position = new Point3D(lerpWrap(from.getX(index), to.getX(index), alpha, FIELD_SIZE_X),
+                lerp(from.getY(index), to.getY(index), alpha),
+                lerpWrap(from.getZ(index), to.getZ(index), alpha, FIELD_SIZE_Z));
+            velocity = new Point3D(lerp(from.getVX(index), to.getVX(index), alpha),
+                lerp(from.getVY(index), to.getVY(index), alpha), lerp(from.getVZ(index), to.getVZ(index), alpha));
 
-        // Objects further away should have less force
-        // Adjust the vector by dividing it by the square of its length
-        private Point3D adjust(Point3D vec) {
-            return vec.multiply(Math.pow(vec.magnitude(), -2.0));
-        }
-
-        // Truncate the vector to a max magnitude of 1.0
-        private Point3D truncate(Point3D vec) {
-            if (vec.magnitude() > 1.0) {
-                return vec.normalize();
-            }
-            return vec;
-        }
-
-        private Point3D prioritize(List<Point3D> deltas) {
-            Point3D vec = Point3D.ZERO;
-            double totalMag = 0.0;
-            for (Point3D delta : deltas) {
-                double mag = delta.magnitude();
-                if (totalMag + mag < MAX_DELTA) {
-                    vec = vec.add(delta);
-                    totalMag += mag;
-                } else {
-                    double scale = (MAX_DELTA - totalMag) / delta.magnitude();
-                    vec = vec.add(delta.multiply(scale));
-                    breakCount.increment();
-                    break;
-                }
-            }
-            return vec;
-        }
-
-        public void update() {
-            // Update list of nearby boids
-            nearbyBoids = getBoidsInRange(index, view.get());
-
-            // Steer - Adjust velocity according to forces
-            delta = prioritize(Arrays.asList(avoidObsticles(), avoidNearby(), matchVelocity(), towardNearby2()));
-
-            // Add delta, but don't exceed maximum speed
-            Point3D oldVelocity = Point3D.ZERO.add(velocity);
-            velocity = velocity.add(delta);
-            if (velocity.magnitude() > MAX_SPEED) {
-                velocity = velocity.normalize().multiply(MAX_SPEED);
-            }
-            delta = velocity.subtract(oldVelocity);
-
-            // Update position
-            Point3D newPos = position.add(velocity);
-            position = wrapPosition(newPos);
-
-            // Render the boid
-            draw();
+            numNearby = to.getNumNearby(index);
+            hue = hueOf(to, index);
         }
 
+        // Only swaps in another shared material, and only when the bucket changes
         private void updateColor() {
-            if ((numColors == 0) || (nearbyBoids.size() == 0)) {
-                color = BOID_COLOR;
+            int next = hue < 0.0 ? -1 : palette.bucketOf(hue);
+            if (next == bucket) {
                 return;
             }
-            double hue = (360.0 / numColors) * nearbyBoids.size();
-            color = Color.hsb(hue, 0.6, 1.0);
-            boidMat.setDiffuseColor(color);
-        }
-
-        private Point3D wrapPosition(Point3D pos) {
-            // Wrap around world
-            double minX = -FIELD_SIZE_X / 2.0;
-            double minY = -FIELD_SIZE_Y / 2.0;
-            double minZ = -FIELD_SIZE_Z / 2.0;
-            double maxX = FIELD_SIZE_X / 2.0;
-            double maxY = FIELD_SIZE_Y / 2.0;
-            double maxZ = FIELD_SIZE_Z / 2.0;
-            double posX = pos.getX();
-            double posY = pos.getY();
-            double posZ = pos.getZ();
-            double dirX = 1.0;
-            double dirY = 1.0;
-            double dirZ = 1.0;
-
-            if (posX < minX) {
-                posX = maxX - (minX - posX);
-            } else if (posX > maxX) {
-                posX = minX + (posX - maxX);
-            }
-//            if (posY < minY) {
-//                posY = minY + (minY - posY);
-//                dirY = -dirY;
-//            } else if (posY > maxY) {
-//                posY = maxY - (posY - maxY);
-//                dirY = -dirY;
-//            }
-            if (posZ < minZ) {
-                posZ = maxZ - (minZ - posZ);
-            } else if (posZ > maxZ) {
-                posZ = minZ + (posZ - maxZ);
+            bucket = next;
+            color = bucket < 0 ? BOID_COLOR : palette.getColor(bucket);
+            PhongMaterial mat = bucket < 0 ? noneMat : palette.getMaterial(bucket);
+            for (Shape3D shape : shapes) {
+                shape.setMaterial(mat);
             }
-            setVelocity(dirX * velocity.getX(), dirY * velocity.getY(), dirZ * velocity.getZ());
-            return new Point3D(posX, posY, posZ);
         }
 
         public void draw() {
@@ -858,7 +1494,7 @@ public class Boids3D extends Application {
 
     private class Metric {
         String name;
-        int count = 0;
+        long count = 0;
 
         Metric(String name) {
             this.name = name;
@@ -872,9 +1508,17 @@ public class Boids3D extends Application {
             count++;
         }
 
+        public void add(long n) {
+            count += n;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
         public String toString() {
             return name + ": " + count;
         }
     }
 
-}
\ No newline at end of file
+}
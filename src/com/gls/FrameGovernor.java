@@ -0,0 +1,179 @@
+package com.gls;
+
+import java.util.Arrays;
+
+/**
+ * Trades quality for frame rate when frames run late, and wins it back when they
+ * are on time again.
+ *
+ * Frame time is the gap between the timestamps the AnimationTimer is handed, so
+ * it counts everything, rendering included. A running average over budget moves
+ * down one level, in a fixed order: cheaper level of detail first, then a shorter
+ * view radius, then a lower simulation rate.
+ *
+ * Frames can't come faster than the display, so being on time is all the
+ * headroom there is to see. After a long run of on-time frames the governor tries
+ * the next level up. If that level goes over budget again soon after, the wait
+ * before trying it again doubles, so it settles instead of flapping between two
+ * levels.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public class FrameGovernor {
+
+    /**
+     * Quality levels, best first, each with the settings it applies.
+     */
+    public enum Level {
+        FULL(1.0, 1.0, 1.0),
+        LOD_REDUCED(1.5, 1.0, 1.0),
+        LOD_MINIMAL(3.0, 1.0, 1.0),
+        VIEW_REDUCED(3.0, 0.75, 1.0),
+        VIEW_MINIMAL(3.0, 0.5, 1.0),
+        RATE_HALF(3.0, 0.5, 0.5);
+
+        private final double lodScale;
+        private final double viewScale;
+        private final double rateScale;
+
+        Level(double lodScale, double viewScale, double rateScale) {
+            this.lodScale = lodScale;
+            this.viewScale = viewScale;
+            this.rateScale = rateScale;
+        }
+
+        /**
+         * Multiplies the level of detail thresholds, see BoidLod.setThresholdScale().
+         */
+        public double getLodScale() {
+            return lodScale;
+        }
+
+        /**
+         * Multiplies the view radius.
+         */
+        public double getViewScale() {
+            return viewScale;
+        }
+
+        /**
+         * Multiplies the simulation steps per second.
+         */
+        public double getRateScale() {
+            return rateScale;
+        }
+    }
+
+    // Weight of the newest frame in the running average
+    private static final double SMOOTHING = 0.1;
+    // Over budget by this much on average to step down
+    private static final double DEGRADE_RATIO = 1.2;
+    // Within this much of the budget counts as on time
+    private static final double ON_TIME_RATIO = 1.05;
+    // Frames to leave a new level alone before judging it
+    private static final int SETTLE_FRAMES = 30;
+    // On-time frames before trying a level up, doubled each time it fails
+    private static final int RESTORE_FRAMES = 180;
+    private static final int MAX_RESTORE_FRAMES = 180 * 8;
+    // A level up that goes wrong this soon counts as a failed try
+    private static final int FAILED_RESTORE_FRAMES = 300;
+    // A frame gap longer than this is a pause, not a slow frame
+    private static final long MAX_GAP_NANOS = 1_000_000_000L;
+
+    private static final Level[] LEVELS = Level.values();
+
+    private final long budgetNanos;
+    private int level = 0;
+    private long lastNow = -1;
+    private double average;
+    private int settle = 0;
+    private int onTime = 0;
+    private final int[] restoreFrames = new int[LEVELS.length];
+    // Frames since the last level up, or -1 if it has stood long enough
+    private int sinceRestore = -1;
+
+    public FrameGovernor(long budgetNanos) {
+        this.budgetNanos = budgetNanos;
+        average = budgetNanos;
+        Arrays.fill(restoreFrames, RESTORE_FRAMES);
+    }
+
+    public Level getLevel() {
+        return LEVELS[level];
+    }
+
+    public long getBudgetNanos() {
+        return budgetNanos;
+    }
+
+    /**
+     * Running average frame time.
+     */
+    public double getAverageNanos() {
+        return average;
+    }
+
+    /**
+     * Back to full quality, forgetting everything seen so far.
+     */
+    public void reset() {
+        level = 0;
+        lastNow = -1;
+        average = budgetNanos;
+        settle = 0;
+        onTime = 0;
+        sinceRestore = -1;
+        Arrays.fill(restoreFrames, RESTORE_FRAMES);
+    }
+
+    /**
+     * Take the timestamp of a frame.
+     *
+     * @return true if the level changed
+     */
+    public boolean onFrame(long now) {
+        long gap = lastNow < 0 ? budgetNanos : now - lastNow;
+        lastNow = now;
+        if (gap <= 0 || gap > MAX_GAP_NANOS) {
+            return false;
+        }
+        average += SMOOTHING * (gap - average);
+        if (sinceRestore >= 0 && ++sinceRestore > FAILED_RESTORE_FRAMES) {
+            sinceRestore = -1;
+            restoreFrames[level] = RESTORE_FRAMES;
+        }
+        if (settle > 0) {
+            settle--;
+            return false;
+        }
+
+        if (average > budgetNanos * DEGRADE_RATIO) {
+            onTime = 0;
+            if (level == LEVELS.length - 1) {
+                return false;
+            }
+            if (sinceRestore >= 0) {
+                // The level just restored could not hold, wait longer next time
+                restoreFrames[level] = Math.min(MAX_RESTORE_FRAMES, 2 * restoreFrames[level]);
+                sinceRestore = -1;
+            }
+            level++;
+            settle = SETTLE_FRAMES;
+            return true;
+        }
+
+        if (gap <= budgetNanos * ON_TIME_RATIO) {
+            onTime++;
+        } else {
+            onTime = 0;
+        }
+        if (level > 0 && onTime >= restoreFrames[level - 1]) {
+            level--;
+            onTime = 0;
+            settle = SETTLE_FRAMES;
+            sinceRestore = 0;
+            return true;
+        }
+        return false;
+    }
+}
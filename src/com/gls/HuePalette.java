@@ -0,0 +1,87 @@
+package com.gls;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javafx.scene.paint.Color;
+import javafx.scene.paint.PhongMaterial;
+
+/**
+ * A color wheel cut into a fixed number of hue buckets, with a Color and a
+ * PhongMaterial made up front for each one.
+ *
+ * Cycling a color is then just picking another bucket and pointing the shape at
+ * its material. Nothing is allocated, and no material changes, so nothing has to
+ * be sent to the graphics card again.
+ *
+ * Palettes are shared: every caller asking for the same buckets, saturation,
+ * brightness, opacity and specular color gets the same instance. They are
+ * meant for the JavaFX thread.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public class HuePalette {
+
+    private static final Map<String, HuePalette> PALETTES = new HashMap<>();
+
+    private final int buckets;
+    private final Color[] colors;
+    private final PhongMaterial[] materials;
+
+    /**
+     * The shared palette with these settings, made on first use.
+     */
+    public static HuePalette get(int buckets, double saturation, double brightness, double opacity,
+        Color specular) {
+        String key = buckets + "/" + saturation + "/" + brightness + "/" + opacity + "/" + specular;
+        return PALETTES.computeIfAbsent(key,
+            k -> new HuePalette(buckets, saturation, brightness, opacity, specular));
+    }
+
+    private HuePalette(int buckets, double saturation, double brightness, double opacity, Color specular) {
+        if (buckets < 1) {
+            throw new IllegalArgumentException("Need at least one bucket: " + buckets);
+        }
+        this.buckets = buckets;
+        colors = new Color[buckets];
+        materials = new PhongMaterial[buckets];
+        for (int b = 0; b < buckets; b++) {
+            colors[b] = Color.hsb(getHue(b), saturation, brightness, opacity);
+            materials[b] = new PhongMaterial(colors[b]);
+            materials[b].setSpecularColor(specular);
+        }
+    }
+
+    public int getBuckets() {
+        return buckets;
+    }
+
+    /**
+     * The bucket nearest a hue in degrees. Any hue works, it wraps around.
+     */
+    public int bucketOf(double hue) {
+        return Math.floorMod((int) Math.round(hue * buckets / 360.0), buckets);
+    }
+
+    /**
+     * Hue in degrees at the middle of a bucket.
+     */
+    public double getHue(int bucket) {
+        return 360.0 * bucket / buckets;
+    }
+
+    /**
+     * The bucket a number of steps around the wheel, either way.
+     */
+    public int next(int bucket, int steps) {
+        return Math.floorMod(bucket + steps, buckets);
+    }
+
+    public Color getColor(int bucket) {
+        return colors[bucket];
+    }
+
+    public PhongMaterial getMaterial(int bucket) {
+        return materials[bucket];
+    }
+}
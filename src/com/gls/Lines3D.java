@@ -39,6 +39,8 @@ public class Lines3D extends Application {
     Group world = new Group();
     Group lineGroup = new Group();
     List<Fan> fans = new ArrayList<>();
+    // A line's color creeps round the wheel a bit every frame
+    HuePalette palette = HuePalette.get(360, 0.6, 1.0, 1.0, null);
 
     public static void main(String[] args) {
         launch(args);
@@ -50,6 +52,7 @@ public class Lines3D extends Application {
         Scene scene = new Scene(world, WIDTH, HEIGHT, true, SceneAntialiasing.BALANCED);
         scene.setFill(Color.BLACK);
         Group content = new Group();
+        OrbitController orbit = new OrbitController(content);
 
         // Create camera
         PerspectiveCamera camera = new PerspectiveCamera(true);
@@ -83,7 +86,7 @@ public class Lines3D extends Application {
         AnimationTimer timer = new AnimationTimer() {
             @Override
             public void handle(long now) {
-                content.getTransforms().add(new Rotate(0.2, Rotate.Y_AXIS));
+                orbit.rotate(0.2, Rotate.Y_AXIS);
                 onUpdate();
             }
 
@@ -94,16 +97,16 @@ public class Lines3D extends Application {
         primaryStage.addEventHandler(KeyEvent.KEY_PRESSED, event -> {
             switch (event.getCode()) {
             case UP:
-                content.getTransforms().add(new Rotate(-10, Rotate.X_AXIS));
+                orbit.rotate(-10, Rotate.X_AXIS);
                 break;
             case DOWN:
-                content.getTransforms().add(new Rotate(10, Rotate.X_AXIS));
+                orbit.rotate(10, Rotate.X_AXIS);
                 break;
             case LEFT:
-                content.getTransforms().add(new Rotate(10, Rotate.Y_AXIS));
+                orbit.rotate(10, Rotate.Y_AXIS);
                 break;
             case RIGHT:
-                content.getTransforms().add(new Rotate(-10, Rotate.Y_AXIS));
+                orbit.rotate(-10, Rotate.Y_AXIS);
                 break;
             case W:
                 camera.setTranslateZ(camera.getTranslateZ() + 50);
@@ -222,7 +225,7 @@ public class Lines3D extends Application {
                 newSpots.get(i).setPosition(curSpots.get(i).getPosition());
                 newSpots.get(i).setVelocity(curSpots.get(i).getVelocity());
             }
-            newLine.setColor(curLine.getColor());
+            newLine.setHue(curLine.getHue());
 
             // Update the new line
             newLine.update();
@@ -245,29 +248,31 @@ public class Lines3D extends Application {
 
     private class Line extends Box {
         private Spot[] spots = new Spot[2];
-        private final PhongMaterial mat = new PhongMaterial(Color.BLACK);
+        // Kept exact, so slow steps still add up, and drawn with the nearest bucket
+        private double hue;
 
         public Line() {
             super(1, 1, 1);
             for (int i = 0; i < spots.length; i++) {
                 spots[i] = new Spot();
             }
-            Color color = Color.hsb(360 * Math.random(), 0.6, 1);
-            mat.setDiffuseColor(color);
-            // mat.setSpecularColor(Color.SILVER);
-            setMaterial(mat);
+            setHue(360 * Math.random());
         }
 
         private List<Spot> getSpots() {
             return Arrays.asList(spots);
         }
 
-        private Color getColor() {
-            return mat.getDiffuseColor();
+        private double getHue() {
+            return hue;
         }
 
-        private void setColor(Color color) {
-            mat.setDiffuseColor(color);
+        private void setHue(double value) {
+            hue = value;
+            PhongMaterial mat = palette.getMaterial(palette.bucketOf(hue));
+            if (getMaterial() != mat) {
+                setMaterial(mat);
+            }
         }
 
         private void draw() {
@@ -293,11 +298,11 @@ public class Lines3D extends Application {
         }
 
         private void rotateColor() {
-            double hue = getColor().getHue() + 0.6;
-            if (hue > 360) {
-                hue -= 360;
+            double next = getHue() + 0.6;
+            if (next > 360) {
+                next -= 360;
             }
-            setColor(Color.hsb(hue, 0.6, 1));
+            setHue(next);
         }
 
     }
@@ -0,0 +1,84 @@
+package com.gls;
+
+import javafx.geometry.Point3D;
+import javafx.scene.Node;
+import javafx.scene.transform.Affine;
+
+/**
+ * Turns a node around by folding every rotation into a single Affine.
+ *
+ * Adding a new Rotate to a node's transform list on every frame makes the list,
+ * and the cost of concatenating it, grow for as long as the app runs. Here the
+ * node has exactly one transform whatever happens. Every so often the rotation
+ * part is re-orthonormalized so rounding errors do not build up into a skew.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public class OrbitController {
+
+    private static final int RENORMALIZE_INTERVAL = 1000;
+
+    private final Affine affine = new Affine();
+    private int numRotations = 0;
+
+    public OrbitController(Node node) {
+        node.getTransforms().add(affine);
+    }
+
+    public Affine getTransform() {
+        return affine;
+    }
+
+    /**
+     * Rotate about an axis of the node itself. Same as adding a Rotate to the end
+     * of the node's transform list.
+     */
+    public void rotate(double angle, Point3D axis) {
+        affine.appendRotation(angle, 0.0, 0.0, 0.0, axis);
+        rotated();
+    }
+
+    /**
+     * Rotate about an axis of the node's parent, such as the screen X axis.
+     */
+    public void rotateParent(double angle, Point3D axis) {
+        affine.prependRotation(angle, 0.0, 0.0, 0.0, axis);
+        rotated();
+    }
+
+    public void reset() {
+        affine.setToIdentity();
+        numRotations = 0;
+    }
+
+    private void rotated() {
+        if (++numRotations >= RENORMALIZE_INTERVAL) {
+            numRotations = 0;
+            renormalize();
+        }
+    }
+
+    // Gram-Schmidt on the columns of the rotation part
+    private void renormalize() {
+        double xx = affine.getMxx(), xy = affine.getMyx(), xz = affine.getMzx();
+        double yx = affine.getMxy(), yy = affine.getMyy(), yz = affine.getMzy();
+
+        double mag = Math.sqrt(xx * xx + xy * xy + xz * xz);
+        xx /= mag;
+        xy /= mag;
+        xz /= mag;
+        double dot = xx * yx + xy * yy + xz * yz;
+        yx -= dot * xx;
+        yy -= dot * xy;
+        yz -= dot * xz;
+        mag = Math.sqrt(yx * yx + yy * yy + yz * yz);
+        yx /= mag;
+        yy /= mag;
+        yz /= mag;
+        double zx = xy * yz - xz * yy;
+        double zy = xz * yx - xx * yz;
+        double zz = xx * yy - xy * yx;
+
+        affine.setToTransform(xx, yx, zx, affine.getTx(), xy, yy, zy, affine.getTy(), xz, yz, zz, affine.getTz());
+    }
+}
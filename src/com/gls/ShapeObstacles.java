@@ -0,0 +1,88 @@
+package com.gls;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.gls.boids.DistanceField;
+import com.gls.boids.Obstacle;
+
+import javafx.scene.Node;
+import javafx.scene.shape.Box;
+import javafx.scene.shape.Cylinder;
+import javafx.scene.shape.Shape3D;
+import javafx.scene.shape.Sphere;
+import javafx.scene.transform.Transform;
+
+/**
+ * Turns JavaFX shapes into obstacles for the flock.
+ *
+ * Spheres, boxes and cylinders are taken as they stand in the scene, transforms
+ * and all, measured in the coordinates of the node the boids are drawn in. Other
+ * shapes, like meshes, are skipped with a message.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public class ShapeObstacles {
+
+    private ShapeObstacles() {
+    }
+
+    /**
+     * Bake the shapes into a distance field over the flock's field. The bake is
+     * slow, see toObstacles() to do it on another thread.
+     */
+    public static DistanceField bake(List<? extends Shape3D> shapes, Node frame, double sizeX, double sizeY,
+        double sizeZ, double spacing) {
+        return DistanceField.bake(sizeX, sizeY, sizeZ, spacing, toObstacles(shapes, frame));
+    }
+
+    /**
+     * The obstacles for the shapes, placed where they are now. Reads the scene, so
+     * call it on the FX thread; the obstacles can then be baked anywhere.
+     */
+    public static List<Obstacle> toObstacles(List<? extends Shape3D> shapes, Node frame) {
+        List<Obstacle> obstacles = new ArrayList<>();
+        for (Shape3D shape : shapes) {
+            Obstacle obstacle = toObstacle(shape, frame);
+            if (obstacle == null) {
+                System.err.println("Not an obstacle shape, skipped: " + shape);
+            } else {
+                obstacles.add(obstacle);
+            }
+        }
+        return obstacles;
+    }
+
+    /**
+     * The obstacle for a shape, placed where it is in frame's coordinates, or null
+     * if there is no obstacle for that kind of shape.
+     */
+    public static Obstacle toObstacle(Shape3D shape, Node frame) {
+        Obstacle local;
+        if (shape instanceof Sphere) {
+            local = Obstacle.sphere(((Sphere) shape).getRadius());
+        } else if (shape instanceof Box) {
+            Box box = (Box) shape;
+            local = Obstacle.box(box.getWidth(), box.getHeight(), box.getDepth());
+        } else if (shape instanceof Cylinder) {
+            Cylinder cylinder = (Cylinder) shape;
+            local = Obstacle.cylinder(cylinder.getRadius(), cylinder.getHeight());
+        } else {
+            return null;
+        }
+        Transform t = toFrame(shape, frame);
+        return local.placed(new double[] {
+            t.getMxx(), t.getMxy(), t.getMxz(), t.getTx(),
+            t.getMyx(), t.getMyy(), t.getMyz(), t.getTy(),
+            t.getMzx(), t.getMzy(), t.getMzz(), t.getTz() });
+    }
+
+    // Everything between the node and the frame, not the frame's own transforms
+    private static Transform toFrame(Node node, Node frame) {
+        Transform t = node.getLocalToParentTransform();
+        for (Node parent = node.getParent(); parent != null && parent != frame; parent = parent.getParent()) {
+            t = parent.getLocalToParentTransform().createConcatenation(t);
+        }
+        return t;
+    }
+}
@@ -40,6 +40,7 @@ public class Spots3D extends Application {
     List<Spot> spots = new ArrayList<>();
     int score = 0;
     boolean winner = false;
+    HuePalette palette = HuePalette.get(360, 1.0, 1.0, 0.7, Color.WHITE);
 
     public static void main(String[] args) {
         launch(args);
@@ -52,6 +53,7 @@ public class Spots3D extends Application {
         Scene scene = new Scene(world, WIDTH, HEIGHT, true, SceneAntialiasing.BALANCED);
         scene.setFill(Color.SILVER);
         Group content = new Group();
+        OrbitController orbit = new OrbitController(content);
 
         // Create camera
         PerspectiveCamera camera = new PerspectiveCamera(true);
@@ -90,7 +92,7 @@ public class Spots3D extends Application {
         AnimationTimer timer = new AnimationTimer() {
             @Override
             public void handle(long now) {
-                content.getTransforms().add(new Rotate(-0.3, Rotate.Y_AXIS));
+                orbit.rotate(-0.3, Rotate.Y_AXIS);
                 onUpdate();
             }
         };
@@ -99,16 +101,16 @@ public class Spots3D extends Application {
         primaryStage.addEventHandler(KeyEvent.KEY_PRESSED, event -> {
             switch (event.getCode()) {
             case UP:
-                content.getTransforms().add(new Rotate(-10, Rotate.X_AXIS));
+                orbit.rotate(-10, Rotate.X_AXIS);
                 break;
             case DOWN:
-                content.getTransforms().add(new Rotate(10, Rotate.X_AXIS));
+                orbit.rotate(10, Rotate.X_AXIS);
                 break;
             case LEFT:
-                content.getTransforms().add(new Rotate(10, Rotate.Y_AXIS));
+                orbit.rotate(10, Rotate.Y_AXIS);
                 break;
             case RIGHT:
-                content.getTransforms().add(new Rotate(-10, Rotate.Y_AXIS));
+                orbit.rotate(-10, Rotate.Y_AXIS);
                 break;
             case W:
                 camera.setTranslateZ(camera.getTranslateZ() + 50);
@@ -186,6 +188,8 @@ public class Spots3D extends Application {
         private Sphere spot;
         private double radius = SPOT_MIN_SIZE;
         private Color color = Color.DARKSLATEGRAY;
+        // Palette bucket once clicked, -1 before
+        private int bucket = -1;
         private Point3D velocity = new Point3D(0, 0, 0);
 
         public Spot() {
@@ -196,12 +200,11 @@ public class Spots3D extends Application {
             spot.setMaterial(mat);
 
             spot.setOnMouseClicked(e -> {
-                if (color.equals(Color.DARKSLATEGRAY)) {
+                if (bucket < 0) {
                     // scoreBox.incrementScore();
-                    color = Color.hsb(360 * Math.random(), 1, 1, 0.7);
-                    mat.setDiffuseColor(color);
-                    mat.setSpecularColor(Color.WHITE);
-                    spot.setMaterial(mat);
+                    bucket = palette.bucketOf(360 * Math.random());
+                    color = palette.getColor(bucket);
+                    spot.setMaterial(palette.getMaterial(bucket));
                     score++;
                     if (score == NUM_SPOTS) {
                         winner = true;
@@ -281,18 +284,13 @@ public class Spots3D extends Application {
             // velocity = velocity.multiply(0.99); // Friction
         }
 
+        // One degree per frame, a spot never clicked starts from its gray's hue
         private void rotateColor() {
-            if (color.equals(Color.BLACK))
-                return;
-            double hue = color.getHue() + 1;
-            if (hue > 360) {
-                hue -= 360;
-            }
-            color = Color.hsb(hue, 1, 1, 0.7);
-            final PhongMaterial mat = new PhongMaterial();
-            mat.setDiffuseColor(color);
-            mat.setSpecularColor(Color.WHITE);
-            spot.setMaterial(mat);
+            if (bucket < 0)
+                bucket = palette.bucketOf(color.getHue());
+            bucket = palette.next(bucket, 1);
+            color = palette.getColor(bucket);
+            spot.setMaterial(palette.getMaterial(bucket));
         }
     }
 
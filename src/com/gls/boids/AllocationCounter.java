@@ -0,0 +1,62 @@
+package com.gls.boids;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Bytes allocated by the current thread, from the HotSpot thread MXBean.
+ *
+ * Take a reading before and after a piece of code to see how much it allocated.
+ * Returns -1 when the JVM does not support allocation counting.
+ *
+ * Threads that exit between two readings drop out of the total.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public final class AllocationCounter {
+
+    private static final com.sun.management.ThreadMXBean BEAN = lookup();
+
+    private AllocationCounter() {
+    }
+
+    public static boolean isSupported() {
+        return BEAN != null;
+    }
+
+    public static long getAllocatedBytes() {
+        if (BEAN == null) {
+            return -1;
+        }
+        return BEAN.getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * Bytes allocated by all live threads, including pool workers. The reading
+     * itself allocates a little.
+     */
+    public static long getTotalAllocatedBytes() {
+        if (BEAN == null) {
+            return -1;
+        }
+        long total = 0;
+        for (long bytes : BEAN.getThreadAllocatedBytes(BEAN.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    private static com.sun.management.ThreadMXBean lookup() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+        if (!sunBean.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        sunBean.setThreadAllocatedMemoryEnabled(true);
+        return sunBean;
+    }
+}
@@ -0,0 +1,79 @@
+package com.gls.boids;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Random numbers for a flock, one stream per boid, all from one seed.
+ *
+ * The streams are split off a SplittableRandom made from the seed, in index
+ * order, so boid i always gets the same numbers no matter how much the other
+ * streams are used, or which thread draws them. The same seed gives the same
+ * starting flock, and with it the same run. Streams for boids added later are
+ * split off when first asked for, still in index order.
+ *
+ * A stream is not thread safe, each one should only be drawn from by one thread
+ * at a time.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public class BoidRandom {
+
+    private final long seed;
+    private final SplittableRandom root;
+    private final SplittableRandom common;
+    private SplittableRandom[] streams = new SplittableRandom[0];
+    private int count = 0;
+
+    public BoidRandom(long seed, int count) {
+        this.seed = seed;
+        root = new SplittableRandom(seed);
+        common = root.split();
+        extend(count);
+    }
+
+    private void extend(int n) {
+        if (streams.length < n) {
+            streams = Arrays.copyOf(streams, Math.max(n, 2 * streams.length));
+        }
+        while (count < n) {
+            streams[count++] = root.split();
+        }
+    }
+
+    /**
+     * A seed for when none was asked for. Print it, and the run can be repeated.
+     */
+    public static long newSeed() {
+        return new SplittableRandom().nextLong();
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Streams split off so far.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * The stream for boid i. Streams past the last one asked for are split off on
+     * first use, so only call this from one thread.
+     */
+    public SplittableRandom get(int i) {
+        if (i >= count) {
+            extend(i + 1);
+        }
+        return streams[i];
+    }
+
+    /**
+     * A stream for anything not tied to one boid.
+     */
+    public SplittableRandom getCommon() {
+        return common;
+    }
+}
@@ -0,0 +1,115 @@
+package com.gls.boids;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reads collision events off a CollisionRing on a thread of its own, so the
+ * steps that find them never wait on whoever is interested.
+ *
+ * The ring is drained every few milliseconds. The monitor keeps a running total
+ * and the rate over the last second, and can log each event as it goes.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public class CollisionMonitor implements CollisionRing.Reader {
+
+    private static final long DRAIN_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final CollisionRing ring;
+    private final Thread thread;
+    private volatile boolean closed;
+    private volatile boolean logging;
+
+    private volatile long total;
+    private volatile double perSecond;
+    // Collisions since the current window started
+    private long windowStart;
+    private long windowCount;
+
+    public CollisionMonitor(CollisionRing ring) {
+        this.ring = ring;
+        thread = new Thread(this::run, "Collision monitor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public CollisionRing getRing() {
+        return ring;
+    }
+
+    public boolean isLogging() {
+        return logging;
+    }
+
+    /**
+     * Print each collision as it is read.
+     */
+    public void setLogging(boolean value) {
+        logging = value;
+    }
+
+    /**
+     * Collisions read so far.
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Collisions a second, over the last whole second.
+     */
+    public double getPerSecond() {
+        return perSecond;
+    }
+
+    /**
+     * Collisions lost because the ring was full.
+     */
+    public long getDropped() {
+        return ring.getDropped();
+    }
+
+    /**
+     * Stop the thread after one last drain, and wait for it, so the counts take in
+     * every event offered before the call.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        windowStart = System.nanoTime();
+        while (!closed) {
+            LockSupport.parkNanos(this, DRAIN_NANOS);
+            drain();
+        }
+        drain();
+    }
+
+    private void drain() {
+        int taken = ring.drain(this);
+        total += taken;
+        windowCount += taken;
+        long now = System.nanoTime();
+        if (now - windowStart >= WINDOW_NANOS) {
+            perSecond = windowCount * 1e9 / (now - windowStart);
+            windowStart = now;
+            windowCount = 0;
+        }
+    }
+
+    @Override
+    public void onCollision(long step, int a, int b, double x, double y, double z) {
+        if (logging) {
+            System.out.printf("Step %d: boids %d and %d collided at (%.1f, %.1f, %.1f)%n", step, a, b, x, y, z);
+        }
+    }
+}
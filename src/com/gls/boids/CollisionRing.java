@@ -0,0 +1,137 @@
+package com.gls.boids;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Collision events from the flock's workers, on their way to one reader.
+ *
+ * A fixed ring of slots, allocated up front. Any number of threads can offer
+ * events at once: a writer claims the next slot with a compare and set on the
+ * write count, fills it in, and then marks it with its sequence number. The
+ * reader takes slots in order as their marks come up. Nobody waits and nothing
+ * is allocated. When the reader falls a whole ring behind, new events are
+ * dropped and counted, rather than holding up the step.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public class CollisionRing {
+
+    public static final int DEFAULT_CAPACITY = 1 << 14;
+
+    private static final VarHandle SEQUENCE = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle WRITTEN;
+    private static final VarHandle READ;
+    private static final VarHandle DROPPED;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            WRITTEN = lookup.findVarHandle(CollisionRing.class, "written", long.class);
+            READ = lookup.findVarHandle(CollisionRing.class, "read", long.class);
+            DROPPED = lookup.findVarHandle(CollisionRing.class, "dropped", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Takes events off the ring.
+     */
+    public interface Reader {
+        void onCollision(long step, int a, int b, double x, double y, double z);
+    }
+
+    private final int mask;
+    // Slot k holds event n when sequence[k] is n + 1
+    private final long[] sequence;
+    private final long[] step;
+    private final int[] first, second;
+    private final double[] x, y, z;
+
+    private volatile long written;
+    private volatile long read;
+    private volatile long dropped;
+
+    public CollisionRing() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity events the ring holds, a power of two
+     */
+    public CollisionRing(int capacity) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        mask = capacity - 1;
+        sequence = new long[capacity];
+        step = new long[capacity];
+        first = new int[capacity];
+        second = new int[capacity];
+        x = new double[capacity];
+        y = new double[capacity];
+        z = new double[capacity];
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Add a collision between boids a and b, at (x, y, z), in the given step. Safe
+     * from any thread.
+     *
+     * @return false if the ring was full and the event was dropped
+     */
+    public boolean offer(long step, int a, int b, double x, double y, double z) {
+        long n;
+        do {
+            n = written;
+            if (n - read > mask) {
+                DROPPED.getAndAdd(this, 1L);
+                return false;
+            }
+        } while (!WRITTEN.compareAndSet(this, n, n + 1));
+        int k = (int) n & mask;
+        this.step[k] = step;
+        first[k] = a;
+        second[k] = b;
+        this.x[k] = x;
+        this.y[k] = y;
+        this.z[k] = z;
+        SEQUENCE.setRelease(sequence, k, n + 1);
+        return true;
+    }
+
+    /**
+     * Hand every event ready so far to the reader, in the order they were claimed.
+     * Stops at a slot that is claimed but not yet filled in. Only one thread may
+     * drain a ring.
+     *
+     * @return the number of events taken
+     */
+    public int drain(Reader reader) {
+        long n = read;
+        int taken = 0;
+        while (true) {
+            int k = (int) n & mask;
+            if ((long) SEQUENCE.getAcquire(sequence, k) != n + 1) {
+                break;
+            }
+            reader.onCollision(step[k], first[k], second[k], x[k], y[k], z[k]);
+            n++;
+            taken++;
+            // Free the slot for writers
+            READ.setRelease(this, n);
+        }
+        return taken;
+    }
+
+    /**
+     * Events dropped so far because the ring was full.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+}
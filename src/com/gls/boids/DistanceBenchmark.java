@@ -0,0 +1,140 @@
+package com.gls.boids;
+
+import java.util.Random;
+
+/**
+ * Times the grid neighbor queries with the scalar and the vector distance
+ * kernels, and checks that both find the same neighbors.
+ *
+ * <pre>
+ * java --add-modules jdk.incubator.vector -cp bin com.gls.boids.DistanceBenchmark -boids 20000 -view 150
+ * </pre>
+ *
+ * The vector width follows the CPU. To compare AVX2 with AVX-512 on the same
+ * machine, run again with -XX:UseAVX=2 (or -XX:MaxVectorSize=32).
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public class DistanceBenchmark {
+
+    private static final double FIELD_SIZE_X = 2400.0;
+    private static final double FIELD_SIZE_Y = 1350.0;
+    private static final double FIELD_SIZE_Z = 2400.0;
+
+    private int numBoids = 20000;
+    private double view = 150.0;
+    private int rounds = 20;
+    private long seed = 1;
+
+    // Keeps the queries from being optimized away
+    private long sink;
+
+    public static void main(String[] args) {
+        DistanceBenchmark benchmark = new DistanceBenchmark();
+        try {
+            benchmark.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: DistanceBenchmark [-boids N] [-view V] [-rounds R] [-seed S]");
+            System.exit(2);
+        }
+        benchmark.run();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + name);
+            }
+            String value = args[++i];
+            switch (name) {
+            case "-boids":
+                numBoids = Integer.parseInt(value);
+                break;
+            case "-view":
+                view = Double.parseDouble(value);
+                break;
+            case "-rounds":
+                rounds = Integer.parseInt(value);
+                break;
+            case "-seed":
+                seed = Long.parseLong(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + name);
+            }
+        }
+    }
+
+    private void run() {
+        double[] x = new double[numBoids];
+        double[] y = new double[numBoids];
+        double[] z = new double[numBoids];
+        Random random = new Random(seed);
+        for (int i = 0; i < numBoids; i++) {
+            x[i] = FIELD_SIZE_X * (random.nextDouble() - 0.5);
+            y[i] = FIELD_SIZE_Y * (random.nextDouble() - 0.5);
+            z[i] = FIELD_SIZE_Z * (random.nextDouble() - 0.5);
+        }
+        SpatialGrid grid = new SpatialGrid(FIELD_SIZE_X, FIELD_SIZE_Y, FIELD_SIZE_Z);
+        grid.build(x, y, z, numBoids, view);
+        int capacity = 0;
+        for (int i = 0; i < numBoids; i++) {
+            capacity = Math.max(capacity, grid.candidates(i));
+        }
+        int[] out = new int[capacity];
+
+        System.out.printf("boids=%d view=%.1f cells=%d%n", numBoids, view, grid.getNumCells());
+        DistanceKernel scalar = DistanceKernels.newScalar();
+        DistanceKernel vector = DistanceKernels.newVector();
+        long scalarSum = checksum(grid, scalar, out);
+        if (vector == null) {
+            System.out.printf("%-20s %10.1f ns/query%n", scalar.getName(), time(grid, scalar, out, rounds));
+            System.out.println("vector kernel not available, run with --add-modules jdk.incubator.vector");
+            return;
+        }
+        if (checksum(grid, vector, out) != scalarSum) {
+            throw new IllegalStateException("Vector kernel found different neighbors");
+        }
+
+        // Warm up both, then take turns and keep the best round of each
+        time(grid, scalar, out, rounds);
+        time(grid, vector, out, rounds);
+        double scalarNanos = Double.MAX_VALUE;
+        double vectorNanos = Double.MAX_VALUE;
+        for (int r = 0; r < rounds; r++) {
+            scalarNanos = Math.min(scalarNanos, time(grid, scalar, out, 1));
+            vectorNanos = Math.min(vectorNanos, time(grid, vector, out, 1));
+        }
+        System.out.printf("%-20s %10.1f ns/query%n", scalar.getName(), scalarNanos);
+        System.out.printf("%-20s %10.1f ns/query%n", vector.getName(), vectorNanos);
+        System.out.printf("speedup              %10.2fx%n", scalarNanos / vectorNanos);
+    }
+
+    // Order sensitive, so the kernels have to agree on the order too
+    private long checksum(SpatialGrid grid, DistanceKernel kernel, int[] out) {
+        long sum = 0;
+        for (int i = 0; i < numBoids; i++) {
+            int n = grid.neighbors(i, view, out, kernel);
+            for (int k = 0; k < n; k++) {
+                sum = 31 * sum + out[k];
+            }
+            sum = 31 * sum + n;
+        }
+        return sum;
+    }
+
+    // Best time per query over a number of rounds
+    private double time(SpatialGrid grid, DistanceKernel kernel, int[] out, int count) {
+        long best = Long.MAX_VALUE;
+        for (int r = 0; r < count; r++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < numBoids; i++) {
+                sink += grid.neighbors(i, view, out, kernel);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return (double) best / numBoids;
+    }
+}
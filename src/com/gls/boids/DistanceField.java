@@ -0,0 +1,151 @@
+package com.gls.boids;
+
+import java.util.List;
+
+/**
+ * Signed distance to the nearest obstacle, baked onto a grid over the field.
+ *
+ * Each grid point holds the distance and its gradient, the way out of the
+ * nearest obstacle. A lookup is a trilinear blend of the eight points around,
+ * so it costs the same however many obstacles went in. Like the flock, the grid
+ * wraps on X and Z, and an obstacle near one edge also shows up at the other.
+ * Y is clamped to the field.
+ *
+ * Built once, then only read, so any number of threads can sample it.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public class DistanceField {
+
+    private final double sizeX, sizeY, sizeZ;
+    // Grid points: nx and nz across X and Z, which wrap, and ny + 1 up Y
+    private final int nx, ny, nz;
+    private final double cellX, cellY, cellZ;
+    // Distance and gradient, interleaved four to a point
+    private final float[] values;
+    private final int numObstacles;
+
+    private DistanceField(double sizeX, double sizeY, double sizeZ, double spacing, int numObstacles) {
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        this.numObstacles = numObstacles;
+        nx = Math.max(1, (int) Math.round(sizeX / spacing));
+        ny = Math.max(1, (int) Math.round(sizeY / spacing));
+        nz = Math.max(1, (int) Math.round(sizeZ / spacing));
+        cellX = sizeX / nx;
+        cellY = sizeY / ny;
+        cellZ = sizeZ / nz;
+        values = new float[4 * nx * (ny + 1) * nz];
+    }
+
+    /**
+     * Bake the obstacles onto a grid with points about spacing apart.
+     */
+    public static DistanceField bake(double sizeX, double sizeY, double sizeZ, double spacing,
+        List<Obstacle> obstacles) {
+        if (!(spacing > 0.0)) {
+            throw new IllegalArgumentException("Spacing must be positive: " + spacing);
+        }
+        DistanceField field = new DistanceField(sizeX, sizeY, sizeZ, spacing, obstacles.size());
+        field.fill(obstacles);
+        return field;
+    }
+
+    private void fill(List<Obstacle> obstacles) {
+        Obstacle[] shapes = obstacles.toArray(new Obstacle[0]);
+        for (int k = 0; k < nz; k++) {
+            double z = -sizeZ / 2.0 + k * cellZ;
+            for (int j = 0; j <= ny; j++) {
+                double y = -sizeY / 2.0 + j * cellY;
+                for (int i = 0; i < nx; i++) {
+                    double x = -sizeX / 2.0 + i * cellX;
+                    // Nearest over the wrapped copies too
+                    double d = Double.MAX_VALUE;
+                    for (Obstacle shape : shapes) {
+                        for (int wz = -1; wz <= 1; wz++) {
+                            for (int wx = -1; wx <= 1; wx++) {
+                                d = Math.min(d, shape.distance(x + wx * sizeX, y, z + wz * sizeZ));
+                            }
+                        }
+                    }
+                    values[4 * index(i, j, k)] = (float) d;
+                }
+            }
+        }
+
+        // Gradient from the neighboring points, central differences except at the
+        // top and bottom
+        for (int k = 0; k < nz; k++) {
+            for (int j = 0; j <= ny; j++) {
+                for (int i = 0; i < nx; i++) {
+                    double gx = (distanceAt(i + 1, j, k) - distanceAt(i - 1, j, k)) / (2.0 * cellX);
+                    double gz = (distanceAt(i, j, k + 1) - distanceAt(i, j, k - 1)) / (2.0 * cellZ);
+                    int j0 = Math.max(j - 1, 0);
+                    int j1 = Math.min(j + 1, ny);
+                    double gy = (distanceAt(i, j1, k) - distanceAt(i, j0, k)) / ((j1 - j0) * cellY);
+                    int p = 4 * index(i, j, k);
+                    values[p + 1] = (float) gx;
+                    values[p + 2] = (float) gy;
+                    values[p + 3] = (float) gz;
+                }
+            }
+        }
+    }
+
+    private int index(int i, int j, int k) {
+        return Math.floorMod(i, nx) + nx * (j + (ny + 1) * Math.floorMod(k, nz));
+    }
+
+    private double distanceAt(int i, int j, int k) {
+        return values[4 * index(i, j, k)];
+    }
+
+    public int getNumObstacles() {
+        return numObstacles;
+    }
+
+    /**
+     * Blend the distance and gradient at a point. Writes the distance to out[0],
+     * and the gradient, not normalized, to out[1] to out[3].
+     */
+    public void sample(double x, double y, double z, double[] out) {
+        double fx = (x + sizeX / 2.0) / cellX;
+        double fy = (y + sizeY / 2.0) / cellY;
+        double fz = (z + sizeZ / 2.0) / cellZ;
+        fy = Math.max(0.0, Math.min(ny, fy));
+        int i = (int) Math.floor(fx);
+        int j = Math.min((int) fy, ny - 1);
+        int k = (int) Math.floor(fz);
+        double tx = fx - i;
+        double ty = fy - j;
+        double tz = fz - k;
+        // The eight points around, wrapped on X and Z
+        int i0 = Math.floorMod(i, nx);
+        int i1 = i0 + 1 == nx ? 0 : i0 + 1;
+        int k0 = Math.floorMod(k, nz);
+        int k1 = k0 + 1 == nz ? 0 : k0 + 1;
+        int row = nx * (ny + 1);
+        int p000 = 4 * (i0 + nx * j + row * k0);
+        int p100 = 4 * (i1 + nx * j + row * k0);
+        int p010 = p000 + 4 * nx;
+        int p110 = p100 + 4 * nx;
+        int p001 = 4 * (i0 + nx * j + row * k1);
+        int p101 = 4 * (i1 + nx * j + row * k1);
+        int p011 = p001 + 4 * nx;
+        int p111 = p101 + 4 * nx;
+        double w000 = (1.0 - tx) * (1.0 - ty) * (1.0 - tz);
+        double w100 = tx * (1.0 - ty) * (1.0 - tz);
+        double w010 = (1.0 - tx) * ty * (1.0 - tz);
+        double w110 = tx * ty * (1.0 - tz);
+        double w001 = (1.0 - tx) * (1.0 - ty) * tz;
+        double w101 = tx * (1.0 - ty) * tz;
+        double w011 = (1.0 - tx) * ty * tz;
+        double w111 = tx * ty * tz;
+        for (int c = 0; c < 4; c++) {
+            out[c] = w000 * values[p000 + c] + w100 * values[p100 + c] + w010 * values[p010 + c]
+                + w110 * values[p110 + c] + w001 * values[p001 + c] + w101 * values[p101 + c]
+                + w011 * values[p011 + c] + w111 * values[p111 + c];
+        }
+    }
+}
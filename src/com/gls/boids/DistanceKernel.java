@@ -0,0 +1,29 @@
+package com.gls.boids;
+
+/**
+ * The inner loop of a grid neighbor query: which points in one cell are within
+ * range of the query point.
+ *
+ * The cell's coordinates are contiguous, items maps each slot back to a point
+ * index. Offsets wrap on X and Z, the same way as SpatialGrid.wrap(). Matches are
+ * written in slot order, so every kernel gives the same neighbor list.
+ *
+ * A kernel may keep scratch space, so each thread needs its own, see
+ * DistanceKernels.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public interface DistanceKernel {
+
+    /**
+     * Append to out the index of every point in slots [from, to) other than self
+     * with a squared distance to (px, py, pz) of at most range2. Slots of out after
+     * the returned count may be written over, up to n + (to - from).
+     *
+     * @return the new number of indices in out, starting from n
+     */
+    int collect(double[] x, double[] y, double[] z, int[] items, int from, int to, double px, double py, double pz,
+        double range2, double sizeX, double sizeZ, int self, int[] out, int n);
+
+    String getName();
+}
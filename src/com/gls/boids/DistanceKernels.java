@@ -0,0 +1,66 @@
+package com.gls.boids;
+
+import java.lang.reflect.Constructor;
+
+/**
+ * Makes distance kernels for the neighbor grid, one per thread.
+ *
+ * The vector kernel needs the incubating jdk.incubator.vector module, so it is
+ * loaded by name and only if the module is there. Without it, or with
+ * -Dcom.gls.boids.simd=false, everything runs on the scalar kernel.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public final class DistanceKernels {
+
+    private static final Constructor<? extends DistanceKernel> VECTOR = findVector();
+
+    private DistanceKernels() {
+    }
+
+    public static DistanceKernel newScalar() {
+        return new ScalarDistanceKernel();
+    }
+
+    /**
+     * A new Vector API kernel, or null if this JVM was not started with
+     * --add-modules jdk.incubator.vector.
+     */
+    public static DistanceKernel newVector() {
+        if (VECTOR == null) {
+            return null;
+        }
+        try {
+            return VECTOR.newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create the vector kernel", e);
+        }
+    }
+
+    public static boolean isVectorSupported() {
+        return VECTOR != null;
+    }
+
+    /**
+     * Whether the vector kernel should be used by default: it is there, and not
+     * switched off with -Dcom.gls.boids.simd=false.
+     */
+    public static boolean isVectorDefault() {
+        return VECTOR != null && Boolean.parseBoolean(System.getProperty("com.gls.boids.simd", "true"));
+    }
+
+    private static Constructor<? extends DistanceKernel> findVector() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return null;
+        }
+        try {
+            Constructor<? extends DistanceKernel> constructor = Class.forName("com.gls.boids.VectorDistanceKernel")
+                .asSubclass(DistanceKernel.class).getConstructor();
+            // Load and initialize the Vector API classes now rather than mid-step
+            constructor.newInstance();
+            return constructor;
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+}
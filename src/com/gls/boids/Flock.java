@@ -0,0 +1,1652 @@
+package com.gls.boids;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Flock simulation state and steering rules.
+ *
+ * Boid state is kept in primitive arrays (structure of arrays) and all of the
+ * steering math is done in place on local doubles, so once the arrays are sized a
+ * call to step() does not allocate anything.
+ *
+ * The state is double buffered. A step reads frame N and writes frame N+1, so each
+ * boid only sees its neighbors as they were at the start of the step. That makes
+ * every boid independent of the others, and the boids are split into chunks that
+ * run on a fork-join pool. The result is the same for any number of threads.
+ *
+ * The number of boids can change between steps. The arrays grow by doubling and
+ * shrink when the flock drops to a quarter of them, so memory stays in line with
+ * the live population and a steady step still does not allocate.
+ *
+ * In METRIC mode the grid can be pipelined. While a step is steered, the grid for
+ * the next one is built from the same positions on a thread of its own, so a
+ * step uses a grid that is one step behind. No boid moves further than MAX_SPEED
+ * in a step, so searching that grid a little further out and then checking the
+ * distances against the current positions still finds exactly the neighbors in
+ * range. They come in a different order though, so the sums, and the flock, drift
+ * apart from an unpipelined run. Pipelined runs still match each other for any
+ * number of threads.
+ *
+ * With clustering on, a step also splits the boids into separate flocks: two
+ * boids are in the same flock when a chain of neighbors joins them, whichever
+ * way round they see each other. The workers link neighbors in a lock-free
+ * union-find as they go, and the step ends with one pass that labels every boid
+ * with the lowest index in its flock. The labels don't depend on the thread
+ * count or timing, and stay put while a flock holds together.
+ *
+ * With a max interval above one, boids far from the focus, or flying steadily,
+ * are only steered every 2nd, 4th or 8th step and coast on their velocity in
+ * between. Boids close to the focus point or the focus boid, or near the top,
+ * bottom or an obstacle, are steered every step, and the harder a boid turns
+ * the more often it is steered. Boids take
+ * their turns staggered by index, so each step steers about the same number.
+ * A coasting boid finds no collisions of its own, unless flocks are being
+ * found: then it still looks for its neighbors, to link them, and only the
+ * steering is skipped.
+ *
+ * Each collision can also be sent to a CollisionRing as it is found, with the
+ * two boids, where they met and the step number, for a reader on another thread.
+ *
+ * Boids can be marked as ghosts. A ghost is seen by the others but is not steered
+ * itself, it keeps its state through a step. A shard of a larger flock uses them
+ * for the boids just over its edges, see ShardServer.
+ *
+ * The rules follow the original Point3D versions in Boids3D operation for
+ * operation, so for the same neighbor order the results match to the last bit.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public class Flock {
+
+    public static final double MAX_SPEED = 3.0;
+    public static final double MAX_DELTA = 1.0;
+    public static final double MATCH_SCALE = 0.1;
+    public static final double CENTER_SCALE = 1.0;
+    // Longest a boid goes between steering updates, see setMaxInterval()
+    public static final int MAX_INTERVAL = 8;
+
+    /**
+     * Which attraction rule to steer with. See the notes on each rule.
+     */
+    public enum Toward {
+        NEARBY0, NEARBY1, NEARBY2, CENTER
+    }
+
+    /**
+     * How neighbors are picked. METRIC takes every boid within the view radius,
+     * TOPOLOGICAL takes the nearest few within it, however close the flock packs.
+     * BARNES_HUT is METRIC with far groups of boids taken as one, see Octree and
+     * setOpeningAngle(). It stays fast with a view that takes in most of the flock,
+     * at the price of some error.
+     */
+    public enum Neighbors {
+        METRIC, TOPOLOGICAL, BARNES_HUT
+    }
+
+    /**
+     * How the steering rules walk the neighbors. RULES runs each rule on its own,
+     * one pass over the neighbors per rule. FUSED gathers every rule's sums in a
+     * single pass and then finishes each rule as before. Both give the same result
+     * to the last bit.
+     */
+    public enum Kernel {
+        RULES, FUSED
+    }
+
+    // Chunks per thread, so that a slow chunk does not hold up the whole step
+    private static final int CHUNKS_PER_THREAD = 4;
+    // Never shrink the arrays below this
+    private static final int MIN_CAPACITY = 16;
+    // How much closer two boids can get in the step a pipelined grid lags by
+    private static final double PIPELINE_MARGIN = 2.0 * MAX_SPEED;
+    // Multi-rate steering: a boid turning less than this in a step may go the
+    // longest between updates. A boid closer than the margin to the top, bottom or
+    // an obstacle is steered every step, far enough out that it can't coast into
+    // them between turns
+    private static final double STEADY_TURN = 0.05;
+    private static final double EDGE_MARGIN = MAX_INTERVAL * MAX_SPEED;
+    // Only every this many searches is timed, a clock read per boid costs more
+    // than the small searches do. A power of two.
+    private static final int SEARCH_SAMPLE = 16;
+    // Atomic access to the union-find links
+    private static final VarHandle PARENT = MethodHandles.arrayElementVarHandle(int[].class);
+
+    private final double sizeX, sizeY, sizeZ;
+    private int count;
+    private int capacity;
+
+    // Boid state, frame N
+    private double[] x, y, z;
+    private double[] vx, vy, vz;
+    // Boid state, frame N+1
+    private double[] nx, ny, nz;
+    private double[] nvx, nvy, nvz;
+    private double[] size;
+    private int[] numNearby;
+    private boolean[] ghost;
+    // Flocks: union-find links during a step, each boid's flock id after it, and
+    // the size of each flock by id
+    private int[] parent;
+    private int[] clusterSize;
+    private int numClusters;
+    private boolean clustered;
+    // Multi-rate steering: how often each boid may be steered, as a power of two,
+    // from how steady it was last time
+    private byte[] steady;
+
+    private SpatialGrid grid;
+    private final KdTree tree;
+    private final Octree octree;
+    // Pipelined grid: the next grid is built by the builder during a step
+    private SpatialGrid nextGrid;
+    private GridBuilder builder;
+    // Set when boids move other than by a step, so the grid built ahead is no good
+    private boolean moved = true;
+    private double collide;
+    // Biggest boid this step, so the trees know how far a collision can be
+    private double largest;
+    // Collisions are looked for at least this far, so a shard sees as far as the
+    // whole flock even when its biggest boids are elsewhere
+    private double sizeFloor = 0.0;
+
+    // Parameters, may be set from any thread and are picked up by the next step
+    private volatile double view = 150.0;
+    private volatile double pullScale = 0.1;
+    private volatile double pushScale = 1.0;
+    private volatile boolean center = true;
+    private volatile Toward toward = Toward.NEARBY2;
+    private volatile Neighbors neighbors = Neighbors.METRIC;
+    private volatile int numNearest = 7;
+    private volatile double viewAngle = 360.0;
+    private volatile Kernel kernel = Kernel.RULES;
+    private volatile boolean vectorized = DistanceKernels.isVectorDefault();
+    private volatile boolean pipelined = false;
+    private volatile double openingAngle = 0.5;
+    private volatile boolean clustering = false;
+    private volatile DistanceField obstacles;
+    private volatile CollisionRing collisionEvents;
+    private volatile int maxInterval = 1;
+    private volatile double focusX, focusY, focusZ;
+    private volatile double focusRadius = 0.0;
+    private volatile int focusBoid = -1;
+
+    // Parameters for the step in progress
+    private double range, reach, pull, push;
+    private Toward rule;
+    private Neighbors mode;
+    private int nearest;
+    private double halfAngle, cosHalf, theta;
+    private boolean cone;
+    private Kernel steering;
+    private boolean simd;
+    private boolean linking;
+    private DistanceField field;
+    private CollisionRing events;
+    private long stepCount;
+    private int maxShift;
+    private double fx, fy, fz, near2;
+    private int fi;
+
+    // Threads
+    private int parallelism = 1;
+    private ForkJoinPool pool;
+    private Worker[] workers;
+    private final RecursiveAction root = new RecursiveAction() {
+        @Override
+        protected void compute() {
+            try {
+                invokeAll(workers);
+            } catch (RuntimeException | Error e) {
+                failure = e;
+            } finally {
+                done = true;
+                LockSupport.unpark(caller);
+            }
+        }
+    };
+    // Joining a task from outside the pool allocates a wait node, so the caller
+    // parks on its own until the root task is done.
+    private volatile boolean done;
+    private volatile Thread caller;
+    private volatile Throwable failure;
+
+    // Metrics for the last step
+    private int breakCount;
+    private int collisions;
+    private int steered;
+    private long neighborNanos;
+    private long steeringNanos;
+
+    public Flock(int count, double sizeX, double sizeY, double sizeZ) {
+        this.count = count;
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        x = y = z = vx = vy = vz = size = new double[0];
+        numNearby = new int[0];
+        ghost = new boolean[0];
+        parent = clusterSize = new int[0];
+        steady = new byte[0];
+        allocate(Math.max(count, MIN_CAPACITY));
+
+        grid = new SpatialGrid(sizeX, sizeY, sizeZ);
+        nextGrid = new SpatialGrid(sizeX, sizeY, sizeZ);
+        tree = new KdTree(sizeX, sizeZ);
+        octree = new Octree(sizeX, sizeZ);
+        setParallelism(1);
+    }
+
+    public double getSizeX() {
+        return sizeX;
+    }
+
+    public double getSizeY() {
+        return sizeY;
+    }
+
+    public double getSizeZ() {
+        return sizeZ;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Boids the arrays have room for before they grow again.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Change the number of boids. Boids past the new count are dropped, new ones
+     * start at the origin, standing still, with size zero, until they are set.
+     *
+     * Like the rest of the state, only change it between steps, on the thread that
+     * steps the flock.
+     */
+    public void setCount(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Count can't be negative: " + value);
+        }
+        if (value > capacity) {
+            allocate(Math.max(value, 2 * capacity));
+        } else if (value < capacity / 4 && capacity > MIN_CAPACITY) {
+            allocate(Math.max(value * 2, MIN_CAPACITY));
+        }
+        if (value > count) {
+            clear(count, value);
+        }
+        if (value != count) {
+            moved = true;
+            clustered = false;
+        }
+        count = value;
+    }
+
+    /**
+     * Add a boid at the end.
+     *
+     * @return the index of the new boid
+     */
+    public int addBoid(double x, double y, double z, double dx, double dy, double dz, double size) {
+        int i = count;
+        setCount(count + 1);
+        setPosition(i, x, y, z);
+        setVelocity(i, dx, dy, dz);
+        setSize(i, size);
+        return i;
+    }
+
+    /**
+     * Remove boid i. The last boid moves into its place, so only the last index
+     * changes.
+     */
+    public void removeBoid(int i) {
+        if (i < 0 || i >= count) {
+            throw new IndexOutOfBoundsException("Boid " + i + " of " + count);
+        }
+        int last = count - 1;
+        x[i] = x[last];
+        y[i] = y[last];
+        z[i] = z[last];
+        vx[i] = vx[last];
+        vy[i] = vy[last];
+        vz[i] = vz[last];
+        size[i] = size[last];
+        numNearby[i] = numNearby[last];
+        ghost[i] = ghost[last];
+        steady[i] = steady[last];
+        setCount(last);
+    }
+
+    // Only the current frame and the sizes carry over, frame N+1 is written fresh
+    private void allocate(int newCapacity) {
+        int keep = Math.min(count, newCapacity);
+        x = Arrays.copyOf(x, newCapacity);
+        y = Arrays.copyOf(y, newCapacity);
+        z = Arrays.copyOf(z, newCapacity);
+        vx = Arrays.copyOf(vx, newCapacity);
+        vy = Arrays.copyOf(vy, newCapacity);
+        vz = Arrays.copyOf(vz, newCapacity);
+        size = Arrays.copyOf(size, newCapacity);
+        numNearby = Arrays.copyOf(numNearby, newCapacity);
+        ghost = Arrays.copyOf(ghost, newCapacity);
+        steady = Arrays.copyOf(steady, newCapacity);
+        parent = new int[newCapacity];
+        clusterSize = new int[newCapacity];
+        clustered = false;
+        nx = new double[newCapacity];
+        ny = new double[newCapacity];
+        nz = new double[newCapacity];
+        nvx = new double[newCapacity];
+        nvy = new double[newCapacity];
+        nvz = new double[newCapacity];
+        clear(keep, newCapacity);
+        capacity = newCapacity;
+    }
+
+    private void clear(int from, int to) {
+        Arrays.fill(x, from, to, 0.0);
+        Arrays.fill(y, from, to, 0.0);
+        Arrays.fill(z, from, to, 0.0);
+        Arrays.fill(vx, from, to, 0.0);
+        Arrays.fill(vy, from, to, 0.0);
+        Arrays.fill(vz, from, to, 0.0);
+        Arrays.fill(size, from, to, 0.0);
+        Arrays.fill(numNearby, from, to, 0);
+        Arrays.fill(ghost, from, to, false);
+        Arrays.fill(steady, from, to, (byte) 0);
+    }
+
+    public double getX(int i) {
+        return x[i];
+    }
+
+    public double getY(int i) {
+        return y[i];
+    }
+
+    public double getZ(int i) {
+        return z[i];
+    }
+
+    public double getVX(int i) {
+        return vx[i];
+    }
+
+    public double getVY(int i) {
+        return vy[i];
+    }
+
+    public double getVZ(int i) {
+        return vz[i];
+    }
+
+    public void setPosition(int i, double x, double y, double z) {
+        moved = true;
+        this.x[i] = x;
+        this.y[i] = y;
+        this.z[i] = z;
+    }
+
+    public void setVelocity(int i, double dx, double dy, double dz) {
+        vx[i] = dx;
+        vy[i] = dy;
+        vz[i] = dz;
+    }
+
+    public double getSize(int i) {
+        return size[i];
+    }
+
+    public void setSize(int i, double value) {
+        size[i] = value;
+    }
+
+    public int getNumNearby(int i) {
+        return numNearby[i];
+    }
+
+    void setNumNearby(int i, int value) {
+        numNearby[i] = value;
+    }
+
+    public boolean isGhost(int i) {
+        return ghost[i];
+    }
+
+    /**
+     * Make boid i a ghost, seen by the others but left as it is by step().
+     */
+    public void setGhost(int i, boolean value) {
+        ghost[i] = value;
+    }
+
+    double getSizeFloor() {
+        return sizeFloor;
+    }
+
+    void setSizeFloor(double value) {
+        sizeFloor = value;
+    }
+
+    /**
+     * For steps done somewhere else, see ShardCoordinator.
+     */
+    void setStepResults(int breakCount, int collisions, long neighborNanos, long steeringNanos) {
+        this.breakCount = breakCount;
+        this.collisions = collisions;
+        this.neighborNanos = neighborNanos;
+        this.steeringNanos = steeringNanos;
+        clustered = false;
+    }
+
+    public double getView() {
+        return view;
+    }
+
+    public void setView(double value) {
+        view = value;
+    }
+
+    public double getPullScale() {
+        return pullScale;
+    }
+
+    public void setPullScale(double value) {
+        pullScale = value;
+    }
+
+    public double getPushScale() {
+        return pushScale;
+    }
+
+    public void setPushScale(double value) {
+        pushScale = value;
+    }
+
+    public Toward getToward() {
+        return toward;
+    }
+
+    public void setToward(Toward value) {
+        toward = value;
+    }
+
+    public Neighbors getNeighbors() {
+        return neighbors;
+    }
+
+    public void setNeighbors(Neighbors value) {
+        neighbors = value;
+    }
+
+    /**
+     * Number of neighbors in TOPOLOGICAL mode. Starlings follow about seven.
+     */
+    public int getNumNearest() {
+        return numNearest;
+    }
+
+    public void setNumNearest(int value) {
+        numNearest = value;
+    }
+
+    /**
+     * Field of vision in degrees, centered on the direction of flight. 360 sees all
+     * the way around.
+     */
+    public double getViewAngle() {
+        return viewAngle;
+    }
+
+    public void setViewAngle(double value) {
+        viewAngle = value;
+    }
+
+    public Kernel getKernel() {
+        return kernel;
+    }
+
+    public void setKernel(Kernel value) {
+        kernel = value;
+    }
+
+    /**
+     * Whether METRIC neighbor queries use the vector distance kernel. On by
+     * default where the JVM has the Vector API, see DistanceKernels. Setting it
+     * has no effect without it.
+     */
+    public boolean isVectorized() {
+        return vectorized;
+    }
+
+    public void setVectorized(boolean value) {
+        vectorized = value && DistanceKernels.isVectorSupported();
+    }
+
+    /**
+     * Whether the METRIC grid is built a step ahead on its own thread, see the
+     * notes on the class. Off by default, as the results differ from an
+     * unpipelined run.
+     */
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    public void setPipelined(boolean value) {
+        pipelined = value;
+    }
+
+    /**
+     * The Barnes-Hut opening angle. A node of the octree that is narrower than
+     * this times its distance is taken as one neighbor. Zero opens every node and
+     * is exact, bigger is faster and rougher. 0.5 is the usual choice.
+     */
+    public double getOpeningAngle() {
+        return openingAngle;
+    }
+
+    public void setOpeningAngle(double value) {
+        if (!(value >= 0.0)) {
+            throw new IllegalArgumentException("Opening angle can't be negative: " + value);
+        }
+        openingAngle = value;
+    }
+
+    /**
+     * Whether a step also finds the separate flocks, see the notes on the class.
+     * Off by default. In BARNES_HUT mode only the neighbors seen one by one link
+     * boids together, not the far groups.
+     */
+    public boolean isClustering() {
+        return clustering;
+    }
+
+    public void setClustering(boolean value) {
+        clustering = value;
+    }
+
+    /**
+     * Whether the last step found the flocks, so the cluster getters hold.
+     */
+    public boolean hasClusters() {
+        return clustered;
+    }
+
+    public int getNumClusters() {
+        return numClusters;
+    }
+
+    /**
+     * The flock boid i was in after the last step, named by the lowest boid index
+     * in it.
+     */
+    public int getClusterId(int i) {
+        return parent[i];
+    }
+
+    /**
+     * Number of boids in the flock with the given id.
+     */
+    public int getClusterSize(int id) {
+        return clusterSize[id];
+    }
+
+    public DistanceField getObstacles() {
+        return obstacles;
+    }
+
+    /**
+     * Obstacles to steer around as well as the top and bottom of the field, or
+     * null for none. Only steps run here see them, not shards.
+     */
+    public void setObstacles(DistanceField value) {
+        obstacles = value;
+    }
+
+    public CollisionRing getCollisionEvents() {
+        return collisionEvents;
+    }
+
+    /**
+     * Ring to send each collision to as it is found, or null for just the counts.
+     * Events are only sent for steps run here, not by shards.
+     */
+    public void setCollisionEvents(CollisionRing value) {
+        collisionEvents = value;
+    }
+
+    public int getMaxInterval() {
+        return maxInterval;
+    }
+
+    /**
+     * Longest a boid may go between steering updates: 1 steers every boid every
+     * step, up to MAX_INTERVAL. A power of two. Only steps run here use it, not
+     * shards.
+     */
+    public void setMaxInterval(int value) {
+        if (value < 1 || value > MAX_INTERVAL || Integer.bitCount(value) != 1) {
+            throw new IllegalArgumentException("Interval must be a power of two up to " + MAX_INTERVAL + ": " + value);
+        }
+        maxInterval = value;
+    }
+
+    /**
+     * Where the viewer is. With multi-rate steering, boids within the focus radius
+     * of it are steered every step, within twice that every 2nd step, within four
+     * times every 4th, and beyond that as seldom as the max interval allows.
+     */
+    public void setFocus(double x, double y, double z) {
+        focusX = x;
+        focusY = y;
+        focusZ = z;
+    }
+
+    public double getFocusRadius() {
+        return focusRadius;
+    }
+
+    /**
+     * Radius of the full rate region around the focus, zero for none.
+     */
+    public void setFocusRadius(double value) {
+        focusRadius = value;
+    }
+
+    public int getFocusBoid() {
+        return focusBoid;
+    }
+
+    /**
+     * A boid to treat as a second focus, like the one the camera rides on, or -1
+     * for none.
+     */
+    public void setFocusBoid(int value) {
+        focusBoid = value;
+    }
+
+    public boolean isCenter() {
+        return center;
+    }
+
+    public void setCenter(boolean value) {
+        center = value;
+    }
+
+    public int getBreakCount() {
+        return breakCount;
+    }
+
+    public int getCollisions() {
+        return collisions;
+    }
+
+    /**
+     * Time the last step spent on neighbors: building the grid or tree, plus the
+     * searches. The searches run spread over the workers, so their share is the
+     * summed search time divided by the number of threads. Only a sample of the
+     * searches is timed, and scaled up to all of them. A pipelined step only
+     * counts the time it waits for the next grid. When flocks are being found,
+     * the pass that labels them after the searches is counted here too.
+     */
+    public long getNeighborNanos() {
+        return neighborNanos;
+    }
+
+    /**
+     * Time the last step spent on everything else, mostly the steering rules.
+     */
+    public long getSteeringNanos() {
+        return steeringNanos;
+    }
+
+    /**
+     * Boids given a full steering update by the last step, the rest coasted.
+     */
+    public int getSteeredCount() {
+        return steered;
+    }
+
+    /**
+     * Steps run so far, the step number given to collision events.
+     */
+    public long getStepCount() {
+        return stepCount;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Set the number of threads used by step(). One thread runs the step on the
+     * calling thread, more use a fork-join pool of that size.
+     */
+    public void setParallelism(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + threads);
+        }
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+        parallelism = threads;
+        if (threads > 1) {
+            pool = new ForkJoinPool(threads);
+        }
+        int chunks = threads == 1 ? 1 : threads * CHUNKS_PER_THREAD;
+        workers = new Worker[chunks];
+        for (int c = 0; c < chunks; c++) {
+            workers[c] = new Worker();
+        }
+    }
+
+    /**
+     * Advance the flock by one frame.
+     */
+    public void step() {
+        range = view;
+        pull = pullScale;
+        push = pushScale;
+        rule = toward;
+        mode = neighbors;
+        nearest = numNearest;
+        steering = kernel;
+        simd = vectorized;
+        theta = openingAngle;
+        field = obstacles;
+        events = collisionEvents;
+        stepCount++;
+        linking = clustering;
+        maxShift = Integer.numberOfTrailingZeros(maxInterval);
+        fx = focusX;
+        fy = focusY;
+        fz = focusZ;
+        near2 = focusRadius * focusRadius;
+        fi = focusBoid < count ? focusBoid : -1;
+        if (linking) {
+            for (int i = 0; i < count; i++) {
+                parent[i] = i;
+            }
+        }
+        halfAngle = viewAngle / 2.0;
+        cone = halfAngle < 180.0;
+        cosHalf = Math.cos(Math.toRadians(halfAngle));
+        largest = maxSize();
+        collide = 2.0 * largest;
+        // The count may have changed since the last step
+        for (int c = 0; c < workers.length; c++) {
+            workers[c].from = (int) ((long) count * c / workers.length);
+            workers[c].to = (int) ((long) count * (c + 1) / workers.length);
+        }
+        boolean ahead = pipelined && mode == Neighbors.METRIC;
+        if (ahead && builder == null) {
+            builder = new GridBuilder();
+        } else if (!pipelined && builder != null) {
+            builder.close();
+            builder = null;
+        }
+        long start = System.nanoTime();
+        if (mode == Neighbors.TOPOLOGICAL) {
+            tree.build(x, y, z, count);
+        } else if (mode == Neighbors.BARNES_HUT) {
+            octree.build(x, y, z, vx, vy, vz, count);
+        } else if (ahead) {
+            // The grid from the last step, unless boids were moved or the range grew
+            reach = Math.max(range, collide) + PIPELINE_MARGIN;
+            if (moved || grid.getRange() < reach) {
+                grid.build(x, y, z, count, reach);
+            }
+            builder.start(nextGrid, x, y, z, count, reach);
+        } else {
+            reach = Math.max(range, collide);
+            grid.build(x, y, z, count, reach);
+        }
+        long built = System.nanoTime();
+
+        try {
+            steer();
+        } finally {
+            // The builder reads this frame, it has to be done before the swap
+            if (ahead) {
+                builder.await();
+            }
+        }
+        long end = System.nanoTime();
+        if (linking) {
+            label();
+        }
+        clustered = linking;
+        if (ahead) {
+            SpatialGrid t = grid;
+            grid = nextGrid;
+            nextGrid = t;
+        }
+        moved = !ahead;
+        long waited = System.nanoTime();
+
+        breakCount = 0;
+        collisions = 0;
+        steered = 0;
+        long searchNanos = 0;
+        for (Worker worker : workers) {
+            breakCount += worker.breakCount;
+            collisions += worker.collisions;
+            steered += worker.steered;
+            searchNanos += worker.searchNanos;
+        }
+        long search = Math.min(searchNanos / parallelism, end - built);
+        neighborNanos = (built - start) + search + (waited - end);
+        steeringNanos = (end - built) - search;
+        swap();
+    }
+
+    // Run the workers, here or on the pool
+    private void steer() {
+        if (pool == null) {
+            workers[0].compute();
+        } else {
+            for (Worker worker : workers) {
+                worker.reinitialize();
+            }
+            root.reinitialize();
+            done = false;
+            failure = null;
+            caller = Thread.currentThread();
+            pool.execute(root);
+            while (!done) {
+                LockSupport.park(this);
+            }
+            // The pool marks the task complete just after compute() returns, and it
+            // has to be complete before it can be reinitialized for the next step.
+            while (!root.isDone()) {
+                Thread.yield();
+            }
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+        }
+    }
+
+    // Point every boid straight at the root of its flock, and count the flocks.
+    // Links only ever go from a higher index to a lower one, so a boid's parent has
+    // already been pointed at its root by the time the boid comes up.
+    private void label() {
+        Arrays.fill(clusterSize, 0, count, 0);
+        numClusters = 0;
+        for (int i = 0; i < count; i++) {
+            int root = parent[parent[i]];
+            parent[i] = root;
+            if (root == i) {
+                numClusters++;
+            }
+            clusterSize[root]++;
+        }
+    }
+
+    private void swap() {
+        double[] t;
+        t = x; x = nx; nx = t;
+        t = y; y = ny; ny = t;
+        t = z; z = nz; nz = t;
+        t = vx; vx = nvx; nvx = t;
+        t = vy; vy = nvy; nvy = t;
+        t = vz; vz = nvz; nvz = t;
+    }
+
+    private double maxSize() {
+        double max = sizeFloor;
+        for (int i = 0; i < count; i++) {
+            max = Math.max(max, size[i]);
+        }
+        return max;
+    }
+
+    /**
+     * Updates one chunk of boids. Each worker has its own scratch space, and only
+     * writes to its own slots of the frame N+1 arrays.
+     */
+    @SuppressWarnings("serial")
+    private class Worker extends RecursiveAction {
+        // Boids [from, to), set before each step
+        private int from, to;
+
+        // Scratch space for the boid being updated
+        private int[] found = new int[16];
+        private double[] nearX = new double[16];
+        private double[] nearY = new double[16];
+        private double[] nearZ = new double[16];
+        private int near;
+        private final KdTree.Search search = tree.newSearch();
+        private final Octree.Search far = octree.newSearch();
+        private final DistanceKernel scalar = DistanceKernels.newScalar();
+        private final DistanceKernel vector = DistanceKernels.newVector();
+        private final double[] deltas = new double[12];
+        private final double[] sample = new double[4];
+        private double rx, ry, rz;
+        // Neighbor sums for the fused kernels
+        private double pushX, pushY, pushZ;
+        private double matchX, matchY, matchZ;
+        private double sumX, sumY, sumZ;
+        private double pullX, pullY, pullZ;
+
+        private int breakCount;
+        private int collisions;
+        private int steered;
+        private long searchNanos;
+        private int timed;
+
+        @Override
+        protected void compute() {
+            breakCount = 0;
+            collisions = 0;
+            steered = 0;
+            searchNanos = 0;
+            timed = 0;
+            for (int i = from; i < to; i++) {
+                update(i);
+            }
+            // Scale the sampled searches up to all of them
+            if (timed > 0) {
+                searchNanos = searchNanos * steered / timed;
+            }
+        }
+
+        private void update(int index) {
+            if (ghost[index]) {
+                nx[index] = x[index];
+                ny[index] = y[index];
+                nz[index] = z[index];
+                nvx[index] = vx[index];
+                nvy[index] = vy[index];
+                nvz[index] = vz[index];
+                numNearby[index] = 0;
+                return;
+            }
+            if (maxShift > 0 && !isDue(index)) {
+                // A flock is only whole if every boid links its neighbors
+                if (linking) {
+                    findNearby(index);
+                    numNearby[index] = near;
+                    link(index);
+                }
+                coast(index);
+                return;
+            }
+            if ((steered++ & (SEARCH_SAMPLE - 1)) == 0) {
+                long start = System.nanoTime();
+                findNearby(index);
+                searchNanos += System.nanoTime() - start;
+                timed++;
+            } else {
+                findNearby(index);
+            }
+            numNearby[index] = near;
+            if (linking) {
+                link(index);
+            }
+
+            // Steer - Adjust velocity according to forces
+            if (mode == Neighbors.BARNES_HUT) {
+                steerWeighted(index);
+            } else if (steering == Kernel.FUSED) {
+                steerFused(index);
+            } else {
+                steer(index);
+            }
+
+            // Add delta, but don't exceed maximum speed
+            double dx = vx[index] + rx;
+            double dy = vy[index] + ry;
+            double dz = vz[index] + rz;
+            double mag = Math.sqrt(dx * dx + dy * dy + dz * dz);
+            if (mag > MAX_SPEED) {
+                dx = dx / mag * MAX_SPEED;
+                dy = dy / mag * MAX_SPEED;
+                dz = dz / mag * MAX_SPEED;
+            }
+            nvx[index] = dx;
+            nvy[index] = dy;
+            nvz[index] = dz;
+
+            // Update position
+            nx[index] = wrapPosition(x[index] + dx, sizeX);
+            ny[index] = y[index] + dy;
+            nz[index] = wrapPosition(z[index] + dz, sizeZ);
+            if (maxShift > 0) {
+                steady[index] = steadiness(index);
+            }
+        }
+
+        // Multi-rate steering: is it this boid's turn? Its interval is the shorter
+        // of the one it earned by flying steadily and the one for its distance from
+        // the focus.
+        private boolean isDue(int index) {
+            int shift = Math.min(steady[index], focusShift(index));
+            return ((stepCount + index) & ((1 << shift) - 1)) == 0;
+        }
+
+        private int focusShift(int index) {
+            double dx = x[index] - fx;
+            double dy = y[index] - fy;
+            double dz = z[index] - fz;
+            double d2 = dx * dx + dy * dy + dz * dz;
+            if (fi >= 0) {
+                dx = SpatialGrid.wrap(x[index] - x[fi], sizeX);
+                dy = y[index] - y[fi];
+                dz = SpatialGrid.wrap(z[index] - z[fi], sizeZ);
+                d2 = Math.min(d2, dx * dx + dy * dy + dz * dz);
+            }
+            // Each doubling of the distance doubles the interval
+            int shift = 0;
+            for (double limit = near2; shift < maxShift && d2 >= limit; limit *= 4.0) {
+                shift++;
+            }
+            return shift;
+        }
+
+        // How seldom the boid just steered can be steered, from how hard it turned
+        // and how close it is to something to avoid
+        private byte steadiness(int index) {
+            if (sizeY / 2.0 - Math.abs(ny[index]) < EDGE_MARGIN) {
+                return 0;
+            }
+            // The sample is still the one avoidField() took for this boid
+            if (field != null && sample[0] < EDGE_MARGIN) {
+                return 0;
+            }
+            // Each doubling of the turn halves the interval
+            double tx = nvx[index] - vx[index];
+            double ty = nvy[index] - vy[index];
+            double tz = nvz[index] - vz[index];
+            double turn2 = tx * tx + ty * ty + tz * tz;
+            int shift = maxShift;
+            for (double limit = STEADY_TURN * STEADY_TURN; shift > 0 && turn2 > limit; limit *= 4.0) {
+                shift--;
+            }
+            return (byte) shift;
+        }
+
+        // Carry on at the same velocity until the boid's next turn
+        private void coast(int index) {
+            nvx[index] = vx[index];
+            nvy[index] = vy[index];
+            nvz[index] = vz[index];
+            nx[index] = wrapPosition(x[index] + vx[index], sizeX);
+            ny[index] = y[index] + vy[index];
+            nz[index] = wrapPosition(z[index] + vz[index], sizeZ);
+        }
+
+        private void steer(int index) {
+            avoidObsticles(index);
+            store(0);
+            avoidNearby();
+            store(1);
+            matchVelocity();
+            store(2);
+            toward(index);
+            store(3);
+            prioritize(4);
+        }
+
+        /*
+         * The same rules as steer(), with one pass over the neighbors instead of one
+         * per rule. The sums are built with the same operations in the same order as
+         * the separate rules, so the result is identical.
+         */
+        private void steerFused(int index) {
+            clearSums();
+            boolean inverse = rule == Toward.NEARBY1;
+            for (int k = 0; k < near; k++) {
+                double ox = nearX[k];
+                double oy = nearY[k];
+                double oz = nearZ[k];
+                double ax = ox * -1.0;
+                double ay = oy * -1.0;
+                double az = oz * -1.0;
+                // Inverse square, the same for the offset and its negation
+                double f = Math.pow(magnitude(ax, ay, az), -2.0);
+                pushX += ax * f;
+                pushY += ay * f;
+                pushZ += az * f;
+                if (inverse) {
+                    pullX += ox * f;
+                    pullY += oy * f;
+                    pullZ += oz * f;
+                }
+                sumX += ox;
+                sumY += oy;
+                sumZ += oz;
+                int i = found[k];
+                matchX += vx[i];
+                matchY += vy[i];
+                matchZ += vz[i];
+            }
+            finishFused(index);
+        }
+
+        /*
+         * The fused rules over Barnes-Hut neighbors. An aggregate counts as weight
+         * boids all standing at its center of mass, and brings their summed
+         * velocity. With every weight one this is steerFused() again.
+         */
+        private void steerWeighted(int index) {
+            clearSums();
+            boolean inverse = rule == Toward.NEARBY1;
+            for (int k = 0; k < far.getSize(); k++) {
+                double ox = far.getOffsetX(k);
+                double oy = far.getOffsetY(k);
+                double oz = far.getOffsetZ(k);
+                double w = far.getWeight(k);
+                double ax = ox * -1.0;
+                double ay = oy * -1.0;
+                double az = oz * -1.0;
+                double f = Math.pow(magnitude(ax, ay, az), -2.0) * w;
+                pushX += ax * f;
+                pushY += ay * f;
+                pushZ += az * f;
+                if (inverse) {
+                    pullX += ox * f;
+                    pullY += oy * f;
+                    pullZ += oz * f;
+                }
+                sumX += ox * w;
+                sumY += oy * w;
+                sumZ += oz * w;
+                matchX += far.getVelocityX(k);
+                matchY += far.getVelocityY(k);
+                matchZ += far.getVelocityZ(k);
+            }
+            finishFused(index);
+        }
+
+        private void clearSums() {
+            pushX = pushY = pushZ = 0.0;
+            matchX = matchY = matchZ = 0.0;
+            sumX = sumY = sumZ = 0.0;
+            pullX = pullY = pullZ = 0.0;
+        }
+
+        // Turn the neighbor sums into the rules' deltas, near is the boid count
+        private void finishFused(int index) {
+            avoidObsticles(index);
+            store(0);
+
+            // avoidNearby
+            rx = pushX;
+            ry = pushY;
+            rz = pushZ;
+            truncate();
+            scale(push);
+            store(1);
+
+            // matchVelocity
+            if (near == 0) {
+                zero();
+            } else {
+                rx = matchX;
+                ry = matchY;
+                rz = matchZ;
+                scale(1.0 / near);
+                truncate();
+                scale(MATCH_SCALE);
+            }
+            store(2);
+
+            switch (rule) {
+            case NEARBY0:
+                if (near == 0) {
+                    zero();
+                    break;
+                }
+                rx = sumX;
+                ry = sumY;
+                rz = sumZ;
+                scale(1.0 / near);
+                adjust();
+                truncate();
+                scale(pull);
+                break;
+            case NEARBY1:
+                rx = pullX;
+                ry = pullY;
+                rz = pullZ;
+                truncate();
+                scale(pull);
+                break;
+            case CENTER:
+                towardCenter(index);
+                break;
+            default:
+                rx = sumX;
+                ry = sumY;
+                rz = sumZ;
+                truncate();
+                scale(pull);
+                break;
+            }
+            store(3);
+            prioritize(4);
+        }
+
+        // Join boid index's flock with each of its neighbors'. Most neighbors are in
+        // the same flock already, so the root is kept and checked first.
+        private void link(int index) {
+            int root = find(index);
+            if (mode == Neighbors.BARNES_HUT) {
+                for (int k = 0; k < far.getSize(); k++) {
+                    int i = far.getItem(k);
+                    if (i >= 0) {
+                        root = union(root, i);
+                    }
+                }
+                return;
+            }
+            // Seeing all the way around in METRIC mode, each pair sees each other, so
+            // one side is enough
+            boolean both = mode == Neighbors.METRIC && !cone;
+            for (int k = 0; k < near; k++) {
+                int i = found[k];
+                if (!both || index < i) {
+                    root = union(root, i);
+                }
+            }
+        }
+
+        // Lock-free: the higher root is linked under the lower one with a compare and
+        // set, and tried again if another worker got there first. Returns the root of
+        // the joined flock.
+        private int union(int a, int b) {
+            while (true) {
+                a = find(a);
+                b = find(b);
+                if (a == b) {
+                    return a;
+                }
+                if (a < b) {
+                    int t = a;
+                    a = b;
+                    b = t;
+                }
+                if (PARENT.compareAndSet(parent, a, a, b)) {
+                    return b;
+                }
+            }
+        }
+
+        // With path halving. A link only ever moves up the tree, so losing the race
+        // to shorten it does no harm.
+        private int find(int i) {
+            while (true) {
+                int p = (int) PARENT.getVolatile(parent, i);
+                if (p == i) {
+                    return i;
+                }
+                int gp = (int) PARENT.getVolatile(parent, p);
+                if (gp == p) {
+                    return p;
+                }
+                PARENT.compareAndSet(parent, i, p, gp);
+                i = gp;
+            }
+        }
+
+        private void findNearby(int index) {
+            if (mode == Neighbors.TOPOLOGICAL) {
+                findNearest(index);
+                return;
+            } else if (mode == Neighbors.BARNES_HUT) {
+                far.gather(index, range, theta, vx[index], vy[index], vz[index], halfAngle,
+                    size[index] + largest / 2.0, size);
+                collisions += far.getCollisions();
+                if (events != null) {
+                    for (int n = 0; n < far.getCollisions(); n++) {
+                        record(index, far.getCollided(n));
+                    }
+                }
+                near = far.getTotal();
+                return;
+            }
+            ensureCapacity(grid.candidates(index));
+            int numFound = grid.neighbors(index, reach, found, simd ? vector : scalar);
+            double range2 = range * range;
+            near = 0;
+            for (int k = 0; k < numFound; k++) {
+                int i = found[k];
+                double dx = SpatialGrid.wrap(x[i] - x[index], sizeX);
+                double dy = y[i] - y[index];
+                double dz = SpatialGrid.wrap(z[i] - z[index], sizeZ);
+                double dist2 = dx * dx + dy * dy + dz * dz;
+                if (index < i && Math.sqrt(dist2) < (size[index] + size[i] / 2.0)) {
+                    collisions++;
+                    if (events != null) {
+                        record(index, i);
+                    }
+                }
+                if (dist2 <= range2 && inView(index, dx, dy, dz, dist2)) {
+                    found[near] = i;
+                    nearX[near] = dx;
+                    nearY[near] = dy;
+                    nearZ[near] = dz;
+                    near++;
+                }
+            }
+        }
+
+        // The nearest few boids in view, from the k-d tree
+        private void findNearest(int index) {
+            ensureCapacity(nearest);
+            int numFound = search.nearest(index, nearest, range, vx[index], vy[index], vz[index], halfAngle,
+                size[index] + largest / 2.0, size, found);
+            collisions += search.getCollisions();
+            if (events != null) {
+                for (int n = 0; n < search.getCollisions(); n++) {
+                    record(index, search.getCollided(n));
+                }
+            }
+            near = 0;
+            for (int k = 0; k < numFound; k++) {
+                int i = found[k];
+                nearX[near] = SpatialGrid.wrap(x[i] - x[index], sizeX);
+                nearY[near] = y[i] - y[index];
+                nearZ[near] = SpatialGrid.wrap(z[i] - z[index], sizeZ);
+                near++;
+            }
+        }
+
+        // Send a collision to the ring, placed halfway between the two boids. A full
+        // ring drops it, the count in the step results still has it.
+        private void record(int a, int b) {
+            double dx = SpatialGrid.wrap(x[b] - x[a], sizeX);
+            double dz = SpatialGrid.wrap(z[b] - z[a], sizeZ);
+            events.offer(stepCount, a, b, SpatialGrid.wrap(x[a] + dx / 2.0, sizeX), (y[a] + y[b]) / 2.0,
+                SpatialGrid.wrap(z[a] + dz / 2.0, sizeZ));
+        }
+
+        // Is the offset inside the cone of vision around the direction of flight?
+        private boolean inView(int index, double dx, double dy, double dz, double dist2) {
+            if (!cone) {
+                return true;
+            }
+            double speed = magnitude(vx[index], vy[index], vz[index]);
+            if (speed == 0.0) {
+                return true;
+            }
+            double dot = vx[index] * dx + vy[index] * dy + vz[index] * dz;
+            return dot >= cosHalf * speed * Math.sqrt(dist2);
+        }
+
+        // Only grows while the flock is settling, so a steady step does not allocate
+        private void ensureCapacity(int n) {
+            if (found.length >= n) {
+                return;
+            }
+            int capacity = Math.max(n, 2 * found.length);
+            found = new int[capacity];
+            nearX = new double[capacity];
+            nearY = new double[capacity];
+            nearZ = new double[capacity];
+        }
+
+        private void toward(int index) {
+            switch (rule) {
+            case NEARBY0:
+                towardNearby0();
+                break;
+            case NEARBY1:
+                towardNearby1();
+                break;
+            case CENTER:
+                towardCenter(index);
+                break;
+            default:
+                towardNearby2();
+                break;
+            }
+        }
+
+        private void towardCenter(int index) {
+            if (!center) {
+                zero();
+                return;
+            }
+            rx = -x[index];
+            ry = -y[index];
+            rz = -z[index];
+            adjust();
+            truncate();
+            scale(CENTER_SCALE);
+        }
+
+        /*
+         * The toward function according to the spec. The attraction vector is toward
+         * the center of the nearby boids, with a force equal to the inverse square of
+         * the distance. See the notes on Boids3D for how the toward variants behave.
+         */
+        private void towardNearby0() {
+            zero();
+            if (near == 0) {
+                return;
+            }
+            for (int k = 0; k < near; k++) {
+                rx += nearX[k];
+                ry += nearY[k];
+                rz += nearZ[k];
+            }
+            scale(1.0 / near);
+            adjust();
+            truncate();
+            scale(pull);
+        }
+
+        /*
+         * The original toward function. The sum of the inverse square attraction to
+         * each nearby boid.
+         */
+        private void towardNearby1() {
+            zero();
+            for (int k = 0; k < near; k++) {
+                double mag = magnitude(nearX[k], nearY[k], nearZ[k]);
+                double f = Math.pow(mag, -2.0);
+                rx += nearX[k] * f;
+                ry += nearY[k] * f;
+                rz += nearZ[k] * f;
+            }
+            truncate();
+            scale(pull);
+        }
+
+        /*
+         * The modified toward function. Attraction toward the average position, with a
+         * force proportional to the distance.
+         */
+        private void towardNearby2() {
+            zero();
+            for (int k = 0; k < near; k++) {
+                rx += nearX[k];
+                ry += nearY[k];
+                rz += nearZ[k];
+            }
+            truncate();
+            scale(pull);
+        }
+
+        private void avoidNearby() {
+            zero();
+            for (int k = 0; k < near; k++) {
+                double ax = nearX[k] * -1.0;
+                double ay = nearY[k] * -1.0;
+                double az = nearZ[k] * -1.0;
+                double f = Math.pow(magnitude(ax, ay, az), -2.0);
+                rx += ax * f;
+                ry += ay * f;
+                rz += az * f;
+            }
+            truncate();
+            scale(push);
+        }
+
+        private void matchVelocity() {
+            zero();
+            if (near == 0) {
+                return;
+            }
+            for (int k = 0; k < near; k++) {
+                // TODO: Should this be weighted by the neighbor's proximity?
+                int i = found[k];
+                rx += vx[i];
+                ry += vy[i];
+                rz += vz[i];
+            }
+            scale(1.0 / near);
+            truncate();
+            scale(MATCH_SCALE);
+        }
+
+        // Only the Y component can be non-zero, unless there are obstacles
+        private void avoidObsticles(int index) {
+            double vecY = 0.0;
+            double delta;
+            double dist;
+
+            // top and bottom planes
+            double maxY = sizeY / 2.0;
+            dist = maxY - y[index];
+            if (dist > range) {
+                delta = 0.0;
+            } else if (dist > 0.0) {
+                delta = -dist * Math.pow(magnitude(0.0, -dist, 0.0), -2.0);
+            } else {
+                delta = -1.0;
+            }
+            vecY += delta;
+            double minY = -sizeY / 2.0;
+            dist = minY - y[index];
+            if (dist < -range) {
+                delta = 0.0;
+            } else if (dist < 0.0) {
+                delta = -dist * Math.pow(magnitude(0.0, -dist, 0.0), -2.0);
+            } else {
+                delta = 1.0;
+            }
+            vecY += delta;
+            rx = 0.0;
+            ry = vecY;
+            rz = 0.0;
+            if (field != null) {
+                avoidField(index);
+            }
+            truncate();
+        }
+
+        // Away from the nearest obstacle, the same way as from the planes: one over
+        // the distance inside the view range, full strength on or inside it
+        private void avoidField(int index) {
+            field.sample(x[index], y[index], z[index], sample);
+            double dist = sample[0];
+            if (dist > range) {
+                return;
+            }
+            double mag = magnitude(sample[1], sample[2], sample[3]);
+            if (mag == 0.0) {
+                return;
+            }
+            double f = (dist > 0.0 ? 1.0 / dist : 1.0) / mag;
+            rx += sample[1] * f;
+            ry += sample[2] * f;
+            rz += sample[3] * f;
+        }
+
+        private void zero() {
+            rx = 0.0;
+            ry = 0.0;
+            rz = 0.0;
+        }
+
+        private void scale(double factor) {
+            rx = rx * factor;
+            ry = ry * factor;
+            rz = rz * factor;
+        }
+
+        // Objects further away should have less force
+        // Adjust the vector by dividing it by the square of its length
+        private void adjust() {
+            scale(Math.pow(magnitude(rx, ry, rz), -2.0));
+        }
+
+        // Truncate the vector to a max magnitude of 1.0
+        private void truncate() {
+            double mag = magnitude(rx, ry, rz);
+            if (mag > 1.0) {
+                rx = rx / mag;
+                ry = ry / mag;
+                rz = rz / mag;
+            }
+        }
+
+        private void store(int slot) {
+            deltas[3 * slot] = rx;
+            deltas[3 * slot + 1] = ry;
+            deltas[3 * slot + 2] = rz;
+        }
+
+        // Add up the stored deltas in priority order until MAX_DELTA is used up.
+        // The result is left in rx, ry, rz.
+        private void prioritize(int numDeltas) {
+            double sumX = 0.0;
+            double sumY = 0.0;
+            double sumZ = 0.0;
+            double totalMag = 0.0;
+            for (int k = 0; k < numDeltas; k++) {
+                double dx = deltas[3 * k];
+                double dy = deltas[3 * k + 1];
+                double dz = deltas[3 * k + 2];
+                double mag = magnitude(dx, dy, dz);
+                if (totalMag + mag < MAX_DELTA) {
+                    sumX += dx;
+                    sumY += dy;
+                    sumZ += dz;
+                    totalMag += mag;
+                } else {
+                    double scale = (MAX_DELTA - totalMag) / mag;
+                    sumX += dx * scale;
+                    sumY += dy * scale;
+                    sumZ += dz * scale;
+                    breakCount++;
+                    break;
+                }
+            }
+            rx = sumX;
+            ry = sumY;
+            rz = sumZ;
+        }
+    }
+
+    private static double magnitude(double x, double y, double z) {
+        return Math.sqrt(x * x + y * y + z * z);
+    }
+
+    // Wrap around world
+    private static double wrapPosition(double pos, double size) {
+        double min = -size / 2.0;
+        double max = size / 2.0;
+        if (pos < min) {
+            return max - (min - pos);
+        } else if (pos > max) {
+            return min + (pos - max);
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,384 @@
+package com.gls.boids;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Command line throughput runner for the flock engine. Runs without a display,
+ * nothing from JavaFX is loaded.
+ *
+ * <pre>
+ * java -cp bin com.gls.boids.FlockRunner -boids 20000 -steps 1000 -threads 8
+ * </pre>
+ *
+ * Options, with defaults:
+ * <ul>
+ * <li>-boids 400: number of boids</li>
+ * <li>-steps 1000: number of timed steps</li>
+ * <li>-warmup 200: steps run before timing starts</li>
+ * <li>-threads 1: simulation threads</li>
+ * <li>-view 150: view radius</li>
+ * <li>-toward NEARBY2: attraction rule, one of Flock.Toward</li>
+ * <li>-neighbors METRIC: neighbor selection, one of Flock.Neighbors</li>
+ * <li>-nearest 7: neighbors per boid in TOPOLOGICAL mode</li>
+ * <li>-theta 0.5: opening angle in BARNES_HUT mode. The run ends with the error
+ * of one BARNES_HUT step against an exact METRIC step from the same state.</li>
+ * <li>-cone 360: field of vision in degrees</li>
+ * <li>-kernel RULES: steering kernel, one of Flock.Kernel</li>
+ * <li>-simd true: vector distance kernel, if the JVM has jdk.incubator.vector</li>
+ * <li>-pipeline false: build the METRIC grid a step ahead on its own thread,
+ * see Flock.setPipelined()</li>
+ * <li>-clusters false: find the separate flocks every step, see
+ * Flock.setClustering()</li>
+ * <li>-obstacles 0: spheres scattered over the field to steer around, baked into
+ * one DistanceField</li>
+ * <li>-interval 1: steer far or steady boids only every 2nd, 4th or 8th step,
+ * see Flock.setMaxInterval()</li>
+ * <li>-focus 0: radius around the center of the field that is always steered
+ * at the full rate</li>
+ * <li>-events false: send every collision to a CollisionRing, read by a
+ * CollisionMonitor, and check the events against the counts</li>
+ * <li>-seed 1: random seed for the starting positions, see BoidRandom</li>
+ * <li>-shards 0: step in this many ShardServer processes, each with -threads
+ * threads, instead of in this one</li>
+ * <li>-verify false: instead of timing, step alongside a one thread scalar
+ * RULES flock, pipelined the same way, and compare checksums after every
+ * step</li>
+ * </ul>
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public class FlockRunner {
+
+    // Same field as Boids3D
+    private static final double FIELD_SIZE_X = 2400.0;
+    private static final double FIELD_SIZE_Y = 1350.0;
+    private static final double FIELD_SIZE_Z = 2400.0;
+    private static final double BOID_SIZE = 1.2;
+    private static final double MIN_SPEED = 0.0;
+    private static final double OBSTACLE_RADIUS = 60.0;
+    private static final double OBSTACLE_SPACING = 25.0;
+
+    private int numBoids = 400;
+    private int steps = 1000;
+    private int warmup = 200;
+    private int threads = 1;
+    private double view = 150.0;
+    private Flock.Toward toward = Flock.Toward.NEARBY2;
+    private Flock.Neighbors neighbors = Flock.Neighbors.METRIC;
+    private int nearest = 7;
+    private double theta = 0.5;
+    private double cone = 360.0;
+    private Flock.Kernel kernel = Flock.Kernel.RULES;
+    private boolean simd = true;
+    private boolean pipeline = false;
+    private boolean clusters = false;
+    private int obstacles = 0;
+    private int interval = 1;
+    private double focus = 0.0;
+    private boolean events = false;
+    private long seed = 1;
+    private int shards = 0;
+    private boolean verify = false;
+
+    public static void main(String[] args) {
+        FlockRunner runner = new FlockRunner();
+        try {
+            runner.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: FlockRunner [-boids N] [-steps K] [-warmup W] [-threads T]"
+                + " [-view V] [-toward NEARBY0|NEARBY1|NEARBY2|CENTER] [-neighbors METRIC|TOPOLOGICAL|BARNES_HUT]"
+                + " [-nearest K] [-theta T] [-cone DEGREES] [-kernel RULES|FUSED] [-simd true|false]"
+                + " [-pipeline true|false] [-clusters true|false] [-obstacles N] [-interval 1|2|4|8] [-focus R] [-events true|false] [-seed S] [-shards N] [-verify true|false]");
+            System.exit(2);
+        }
+        try (ShardCoordinator coordinator = runner.shards > 0 ? ShardCoordinator.launch(runner.shards,
+            runner.threads, FIELD_SIZE_X, FIELD_SIZE_Y, FIELD_SIZE_Z) : null) {
+            FlockStepper stepper = coordinator != null ? coordinator : Flock::step;
+            if (runner.verify) {
+                runner.verify(stepper);
+            } else {
+                runner.run(stepper);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not start shards: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + name);
+            }
+            String value = args[++i];
+            switch (name) {
+            case "-boids":
+                numBoids = Integer.parseInt(value);
+                break;
+            case "-steps":
+                steps = Integer.parseInt(value);
+                break;
+            case "-warmup":
+                warmup = Integer.parseInt(value);
+                break;
+            case "-threads":
+                threads = Integer.parseInt(value);
+                if (threads < 1) {
+                    throw new IllegalArgumentException("-threads must be at least 1: " + value);
+                }
+                break;
+            case "-view":
+                view = Double.parseDouble(value);
+                break;
+            case "-toward":
+                toward = Flock.Toward.valueOf(value);
+                break;
+            case "-neighbors":
+                neighbors = Flock.Neighbors.valueOf(value);
+                break;
+            case "-nearest":
+                nearest = Integer.parseInt(value);
+                break;
+            case "-theta":
+                theta = Double.parseDouble(value);
+                break;
+            case "-cone":
+                cone = Double.parseDouble(value);
+                break;
+            case "-kernel":
+                kernel = Flock.Kernel.valueOf(value);
+                break;
+            case "-simd":
+                simd = Boolean.parseBoolean(value);
+                break;
+            case "-pipeline":
+                pipeline = Boolean.parseBoolean(value);
+                break;
+            case "-clusters":
+                clusters = Boolean.parseBoolean(value);
+                break;
+            case "-obstacles":
+                obstacles = Integer.parseInt(value);
+                break;
+            case "-interval":
+                interval = Integer.parseInt(value);
+                if (interval < 1 || interval > Flock.MAX_INTERVAL || Integer.bitCount(interval) != 1) {
+                    throw new IllegalArgumentException("-interval must be 1, 2, 4 or 8: " + value);
+                }
+                break;
+            case "-focus":
+                focus = Double.parseDouble(value);
+                break;
+            case "-events":
+                events = Boolean.parseBoolean(value);
+                break;
+            case "-seed":
+                seed = Long.parseLong(value);
+                break;
+            case "-shards":
+                shards = Integer.parseInt(value);
+                break;
+            case "-verify":
+                verify = Boolean.parseBoolean(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + name);
+            }
+        }
+    }
+
+    private Flock createFlock(int parallelism, Flock.Kernel steering, boolean vectorized) {
+        Flock flock = new Flock(numBoids, FIELD_SIZE_X, FIELD_SIZE_Y, FIELD_SIZE_Z);
+        flock.setParallelism(parallelism);
+        flock.setView(view);
+        flock.setToward(toward);
+        flock.setNeighbors(neighbors);
+        flock.setNumNearest(nearest);
+        flock.setOpeningAngle(theta);
+        flock.setViewAngle(cone);
+        flock.setKernel(steering);
+        flock.setVectorized(vectorized);
+        flock.setPipelined(pipeline);
+        flock.setClustering(clusters);
+        flock.setMaxInterval(interval);
+        flock.setFocusRadius(focus);
+
+        BoidRandom streams = new BoidRandom(seed, numBoids);
+        if (obstacles > 0) {
+            flock.setObstacles(bakeObstacles(streams.getCommon()));
+        }
+        for (int i = 0; i < numBoids; i++) {
+            SplittableRandom random = streams.get(i);
+            double x = FIELD_SIZE_X * (random.nextDouble() - 0.5);
+            double y = FIELD_SIZE_Y * (random.nextDouble() - 0.5);
+            double z = FIELD_SIZE_Z * (random.nextDouble() - 0.5);
+            flock.setPosition(i, x, y, z);
+
+            double dx = random.nextDouble() - 0.5;
+            double dy = random.nextDouble() - 0.5;
+            double dz = random.nextDouble() - 0.5;
+            double mag = Math.sqrt(dx * dx + dy * dy + dz * dz);
+            double speed = random.nextDouble() * (Flock.MAX_SPEED - MIN_SPEED) + MIN_SPEED;
+            flock.setVelocity(i, dx / mag * speed, dy / mag * speed, dz / mag * speed);
+            flock.setSize(i, BOID_SIZE);
+        }
+        return flock;
+    }
+
+    private DistanceField bakeObstacles(SplittableRandom random) {
+        List<Obstacle> spheres = new ArrayList<>();
+        for (int k = 0; k < obstacles; k++) {
+            double x = FIELD_SIZE_X * (random.nextDouble() - 0.5);
+            double y = FIELD_SIZE_Y * (random.nextDouble() - 0.5);
+            double z = FIELD_SIZE_Z * (random.nextDouble() - 0.5);
+            spheres.add(Obstacle.sphere(OBSTACLE_RADIUS).placed(new double[] { 1, 0, 0, x, 0, 1, 0, y, 0, 0, 1, z }));
+        }
+        return DistanceField.bake(FIELD_SIZE_X, FIELD_SIZE_Y, FIELD_SIZE_Z, OBSTACLE_SPACING, spheres);
+    }
+
+    private void run(FlockStepper stepper) {
+        Flock flock = createFlock(threads, kernel, simd);
+        System.out.printf("boids=%d steps=%d warmup=%d threads=%d view=%.1f toward=%s neighbors=%s nearest=%d"
+            + " cone=%.0f kernel=%s simd=%b pipeline=%b shards=%d%n", numBoids, steps, warmup, threads, view, toward,
+            neighbors, nearest, cone, kernel, flock.isVectorized(), pipeline, shards);
+
+        CollisionMonitor monitor = null;
+        if (events) {
+            monitor = new CollisionMonitor(new CollisionRing());
+            flock.setCollisionEvents(monitor.getRing());
+        }
+        long collisions = 0;
+        for (int i = 0; i < warmup; i++) {
+            stepper.step(flock);
+            collisions += flock.getCollisions();
+        }
+
+        long callerBytes = 0;
+        long neighborNanos = 0;
+        long steeringNanos = 0;
+        long steered = 0;
+        long totalBefore = AllocationCounter.getTotalAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < steps; i++) {
+            long before = AllocationCounter.getAllocatedBytes();
+            stepper.step(flock);
+            callerBytes += AllocationCounter.getAllocatedBytes() - before;
+            neighborNanos += flock.getNeighborNanos();
+            steeringNanos += flock.getSteeringNanos();
+            steered += flock.getSteeredCount();
+            collisions += flock.getCollisions();
+        }
+        long elapsed = System.nanoTime() - start;
+        long totalBytes = AllocationCounter.getTotalAllocatedBytes() - totalBefore;
+
+        double seconds = elapsed / 1.0e9;
+        System.out.printf("steps/s      %12.1f%n", steps / seconds);
+        System.out.printf("ns/step      %12.0f%n", (double) elapsed / steps);
+        System.out.printf("ns/boid      %12.1f%n", (double) elapsed / steps / numBoids);
+        System.out.printf("neighbors    %12.0f ns/step%n", (double) neighborNanos / steps);
+        System.out.printf("steering     %12.0f ns/step%n", (double) steeringNanos / steps);
+        if (interval > 1) {
+            System.out.printf("steered      %12.1f %% of boids per step%n", 100.0 * steered / steps / numBoids);
+        }
+        if (AllocationCounter.isSupported()) {
+            System.out.printf("alloc/step   %12.1f bytes (stepping thread)%n", (double) callerBytes / steps);
+            System.out.printf("alloc/step   %12.1f bytes (all threads)%n", (double) totalBytes / steps);
+            System.out.printf("alloc rate   %12.3f MB/s (all threads)%n", totalBytes / seconds / 1.0e6);
+        } else {
+            System.out.println("alloc        not supported by this JVM");
+        }
+        System.out.printf("breaks       %12d (last step)%n", flock.getBreakCount());
+        if (monitor != null) {
+            monitor.close();
+            System.out.printf("collisions   %12d counted, %d events read, %d dropped%n", collisions,
+                monitor.getTotal(), monitor.getDropped());
+        }
+        if (flock.hasClusters()) {
+            int largest = 0;
+            for (int i = 0; i < flock.getCount(); i++) {
+                largest = Math.max(largest, flock.getClusterSize(flock.getClusterId(i)));
+            }
+            System.out.printf("flocks       %12d (last step), largest %d%n", flock.getNumClusters(), largest);
+        }
+        if (neighbors == Flock.Neighbors.BARNES_HUT) {
+            printError(flock);
+        }
+    }
+
+    // Step copies of the flock once exactly and once with Barnes-Hut, and compare
+    // the velocities they come out with
+    private void printError(Flock flock) {
+        Flock exact = copyFlock(flock, Flock.Neighbors.METRIC);
+        Flock approx = copyFlock(flock, Flock.Neighbors.BARNES_HUT);
+        exact.step();
+        approx.step();
+        double error2 = 0.0;
+        double change2 = 0.0;
+        double max = 0.0;
+        long exactNear = 0;
+        long approxNear = 0;
+        for (int i = 0; i < flock.getCount(); i++) {
+            double ex = approx.getVX(i) - exact.getVX(i);
+            double ey = approx.getVY(i) - exact.getVY(i);
+            double ez = approx.getVZ(i) - exact.getVZ(i);
+            double e2 = ex * ex + ey * ey + ez * ez;
+            double cx = exact.getVX(i) - flock.getVX(i);
+            double cy = exact.getVY(i) - flock.getVY(i);
+            double cz = exact.getVZ(i) - flock.getVZ(i);
+            error2 += e2;
+            change2 += cx * cx + cy * cy + cz * cz;
+            max = Math.max(max, Math.sqrt(e2));
+            exactNear += exact.getNumNearby(i);
+            approxNear += approx.getNumNearby(i);
+        }
+        int n = Math.max(flock.getCount(), 1);
+        System.out.printf("theta        %12.2f%n", theta);
+        System.out.printf("error        %12.4f rms velocity error / rms exact velocity change%n",
+            change2 == 0.0 ? 0.0 : Math.sqrt(error2 / change2));
+        System.out.printf("error        %12.4f max velocity error (max speed %.1f)%n", max, Flock.MAX_SPEED);
+        System.out.printf("nearby       %12.1f exact, %.1f Barnes-Hut (mean per boid)%n", (double) exactNear / n,
+            (double) approxNear / n);
+    }
+
+    private Flock copyFlock(Flock flock, Flock.Neighbors mode) {
+        Flock copy = new Flock(flock.getCount(), FIELD_SIZE_X, FIELD_SIZE_Y, FIELD_SIZE_Z);
+        copy.setView(view);
+        copy.setToward(toward);
+        copy.setNeighbors(mode);
+        copy.setOpeningAngle(theta);
+        copy.setViewAngle(cone);
+        copy.setKernel(Flock.Kernel.FUSED);
+        for (int i = 0; i < flock.getCount(); i++) {
+            copy.setPosition(i, flock.getX(i), flock.getY(i), flock.getZ(i));
+            copy.setVelocity(i, flock.getVX(i), flock.getVY(i), flock.getVZ(i));
+            copy.setSize(i, flock.getSize(i));
+        }
+        return copy;
+    }
+
+    // The plain engine is the reference: one thread, rule by rule, scalar distances
+    private void verify(FlockStepper stepper) {
+        Flock flock = createFlock(threads, kernel, simd);
+        Flock reference = createFlock(1, Flock.Kernel.RULES, false);
+        System.out.printf("verify boids=%d steps=%d threads=%d kernel=%s simd=%b pipeline=%b shards=%d seed=%d"
+            + " against threads=1 kernel=RULES simd=false%n", numBoids, warmup + steps, threads, kernel,
+            flock.isVectorized(), pipeline, shards, seed);
+        int total = warmup + steps;
+        for (int i = 1; i <= total; i++) {
+            stepper.step(flock);
+            reference.step();
+            long actual = StateChecksum.of(flock);
+            long expected = StateChecksum.of(reference);
+            if (actual != expected) {
+                System.out.printf("step %d: checksum %016x, reference %016x%n", i, actual, expected);
+                System.exit(1);
+            }
+        }
+        System.out.printf("%d steps match, checksum %016x%n", total, StateChecksum.of(flock));
+    }
+}
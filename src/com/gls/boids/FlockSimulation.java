@@ -0,0 +1,267 @@
+package com.gls.boids;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import jdk.jfr.EventType;
+
+/**
+ * Runs a flock on its own thread with a fixed time step, and hands the results to
+ * the render thread as snapshots.
+ *
+ * Snapshots live in a small ring, see SnapshotRing. If the reader still holds
+ * every slot the simulation skips publishing for that step.
+ *
+ * The flock belongs to the simulation thread once start() is called. Parameters
+ * can still be set on it from any thread, anything else goes through post().
+ *
+ * The step itself is done by a FlockStepper, by default Flock.step(). If a step
+ * fails with an I/O error, a lost shard for instance, the simulation pauses.
+ *
+ * With a recorder set, every step is also appended to it, on the simulation
+ * thread, see TrajectoryRecorder. With an exporter set, every step is also
+ * published to shared memory for other processes, see SharedStateExporter.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public class FlockSimulation implements Runnable, SnapshotSource {
+
+    // Don't try to catch up on more than this many steps after a stall
+    private static final int MAX_LAG_STEPS = 5;
+
+    private static final EventType STEP_EVENT = EventType.getEventType(FlockStepEvent.class);
+
+    private final Flock flock;
+    private final FlockStepper stepper;
+    private volatile long stepNanos;
+
+    private final SnapshotRing ring;
+    private long step = 0;
+    // Simulation thread only
+    private TrajectoryRecorder recorder;
+    private SharedStateExporter exporter;
+
+    private final Queue<Runnable> commands = new ConcurrentLinkedQueue<>();
+    private volatile boolean paused = false;
+    private volatile boolean running = false;
+    private Thread thread;
+
+    private volatile long stepAllocatedBytes;
+    private volatile long stepNanosTaken;
+
+    public FlockSimulation(Flock flock, double stepsPerSecond) {
+        this(flock, Flock::step, stepsPerSecond);
+    }
+
+    public FlockSimulation(Flock flock, FlockStepper stepper, double stepsPerSecond) {
+        this.flock = flock;
+        this.stepper = stepper;
+        this.stepNanos = (long) (1.0e9 / stepsPerSecond);
+        ring = new SnapshotRing(SnapshotRing.DEFAULT_SIZE, flock.getCount());
+        publish(System.nanoTime());
+    }
+
+    public Flock getFlock() {
+        return flock;
+    }
+
+    @Override
+    public long getStepNanos() {
+        return stepNanos;
+    }
+
+    /**
+     * Change the time step, from the next step on. Each step is still the same
+     * step of the flock, so this speeds up or slows down the flight.
+     */
+    public void setStepsPerSecond(double stepsPerSecond) {
+        stepNanos = (long) (1.0e9 / stepsPerSecond);
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this, "flock-simulation");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    public void setPaused(boolean value) {
+        paused = value;
+    }
+
+    /**
+     * Run a command on the simulation thread before the next step.
+     */
+    public void post(Runnable command) {
+        commands.add(command);
+    }
+
+    /**
+     * Start appending every step to a recorder, from the next step on.
+     */
+    public void startRecording(TrajectoryRecorder value) {
+        post(() -> recorder = value);
+    }
+
+    /**
+     * Stop recording and close the recorder, on the simulation thread.
+     */
+    public void stopRecording() {
+        post(this::closeRecorder);
+    }
+
+    // A recording that fails is dropped, the simulation carries on
+    private void closeRecorder() {
+        if (recorder == null) {
+            return;
+        }
+        try {
+            recorder.close();
+        } catch (IOException e) {
+            System.err.println("Could not close recording: " + e.getMessage());
+        }
+        recorder = null;
+    }
+
+    /**
+     * Start publishing every step to shared memory, from the next step on.
+     */
+    public void startExport(SharedStateExporter value) {
+        post(() -> exporter = value);
+    }
+
+    /**
+     * Stop publishing and close the exporter, on the simulation thread.
+     */
+    public void stopExport() {
+        post(this::closeExporter);
+    }
+
+    private void closeExporter() {
+        if (exporter == null) {
+            return;
+        }
+        try {
+            exporter.close();
+        } catch (IOException e) {
+            System.err.println("Could not close export: " + e.getMessage());
+        }
+        exporter = null;
+    }
+
+    @Override
+    public Snapshot getLatest() {
+        return ring.getLatest();
+    }
+
+    @Override
+    public boolean retain(Snapshot prev, Snapshot cur) {
+        return ring.retain(prev, cur);
+    }
+
+    /**
+     * Bytes allocated by the last step, as seen by the allocation counter.
+     */
+    public long getStepAllocatedBytes() {
+        return stepAllocatedBytes;
+    }
+
+    public long getStepNanosTaken() {
+        return stepNanosTaken;
+    }
+
+    @Override
+    public void run() {
+        long next = System.nanoTime();
+        while (running) {
+            Runnable command;
+            while ((command = commands.poll()) != null) {
+                command.run();
+            }
+
+            if (!paused) {
+                // Only build the event when a recording wants it, so a step
+                // still allocates nothing otherwise
+                FlockStepEvent event = STEP_EVENT.isEnabled() ? new FlockStepEvent() : null;
+                if (event != null) {
+                    event.begin();
+                }
+                long before = AllocationCounter.getAllocatedBytes();
+                long start = System.nanoTime();
+                try {
+                    stepper.step(flock);
+                } catch (UncheckedIOException e) {
+                    System.err.println("Simulation paused: " + e.getMessage());
+                    paused = true;
+                    continue;
+                }
+                long end = System.nanoTime();
+                stepAllocatedBytes = AllocationCounter.getAllocatedBytes() - before;
+                stepNanosTaken = end - start;
+                step++;
+                if (event != null) {
+                    commitStepEvent(event);
+                }
+                publish(end);
+                if (recorder != null && recorder.getCount() != flock.getCount()) {
+                    // A recording has one count all the way through
+                    System.err.println("Recording stopped: flock changed to " + flock.getCount() + " boids");
+                    closeRecorder();
+                }
+                if (recorder != null) {
+                    try {
+                        recorder.append(flock, step);
+                    } catch (UncheckedIOException e) {
+                        System.err.println("Recording stopped: " + e.getMessage());
+                        closeRecorder();
+                    }
+                }
+                if (exporter != null) {
+                    exporter.publish(flock, step);
+                }
+            }
+
+            next += stepNanos;
+            long now = System.nanoTime();
+            if (next - now > 0) {
+                LockSupport.parkNanos(this, next - now);
+            } else if (now - next > MAX_LAG_STEPS * stepNanos) {
+                next = now;
+            }
+        }
+    }
+
+    private void commitStepEvent(FlockStepEvent event) {
+        event.end();
+        event.step = step;
+        event.boids = flock.getCount();
+        event.threads = flock.getParallelism();
+        event.neighborNanos = flock.getNeighborNanos();
+        event.steeringNanos = flock.getSteeringNanos();
+        event.allocatedBytes = stepAllocatedBytes;
+        event.commit();
+    }
+
+    private void publish(long time) {
+        Snapshot snapshot = ring.claim();
+        if (snapshot == null) {
+            return;
+        }
+        snapshot.fill(flock, step, time);
+        ring.publish(snapshot);
+    }
+}
@@ -0,0 +1,43 @@
+package com.gls.boids;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder event for one simulation step, split into its phases.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+@Name("com.gls.boids.FlockStep")
+@Label("Flock Step")
+@Category({ "Boids", "Simulation" })
+@Description("One step of the flock simulation")
+public class FlockStepEvent extends Event {
+
+    @Label("Step")
+    public long step;
+
+    @Label("Boids")
+    public int boids;
+
+    @Label("Threads")
+    public int threads;
+
+    @Label("Neighbors")
+    @Description("Building the neighbor structure and finding each boid's neighbors")
+    @Timespan(Timespan.NANOSECONDS)
+    public long neighborNanos;
+
+    @Label("Steering")
+    @Description("Applying the steering rules and moving the boids")
+    @Timespan(Timespan.NANOSECONDS)
+    public long steeringNanos;
+
+    @Label("Allocated")
+    @Description("Bytes allocated by the stepping thread")
+    public long allocatedBytes;
+}
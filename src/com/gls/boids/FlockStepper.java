@@ -0,0 +1,12 @@
+package com.gls.boids;
+
+/**
+ * Advances a flock by one step. The plain stepper is Flock.step() itself, a
+ * ShardCoordinator hands the step to other processes and writes the results back.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public interface FlockStepper {
+
+    void step(Flock flock);
+}
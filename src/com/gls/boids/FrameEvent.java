@@ -0,0 +1,37 @@
+package com.gls.boids;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder event for one rendered frame, split into its phases.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+@Name("com.gls.boids.Frame")
+@Label("Boids Frame")
+@Category({ "Boids", "Render" })
+@Description("One frame drawn on the JavaFX thread")
+public class FrameEvent extends Event {
+
+    @Label("Boids")
+    public int boids;
+
+    @Label("Mesh")
+    @Description("All boids drawn as a single mesh")
+    public boolean mesh;
+
+    @Label("Draw")
+    @Description("Placing the boids")
+    @Timespan(Timespan.NANOSECONDS)
+    public long drawNanos;
+
+    @Label("Color")
+    @Description("Coloring the boids")
+    @Timespan(Timespan.NANOSECONDS)
+    public long colorNanos;
+}
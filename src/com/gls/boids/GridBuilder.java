@@ -0,0 +1,100 @@
+package com.gls.boids;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Builds a SpatialGrid on a thread of its own, so the grid for the next step can
+ * be built while the current step is steered, see Flock.setPipelined().
+ *
+ * One build at a time: start() hands it over and returns, await() waits for it
+ * to finish. The handoff is a pair of volatile flags and park/unpark, so it does
+ * not allocate.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public class GridBuilder {
+
+    private final Thread thread;
+    private volatile boolean requested;
+    private volatile boolean finished = true;
+    private volatile boolean closed;
+    private volatile Thread waiter;
+    private volatile Throwable failure;
+
+    // The build to run, set before requested
+    private SpatialGrid grid;
+    private double[] x, y, z;
+    private int count;
+    private double range;
+
+    public GridBuilder() {
+        thread = new Thread(this::run, "Grid builder");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Start building the grid over the first count points. The arrays are read
+     * until await() returns, so they must not change before then.
+     */
+    public void start(SpatialGrid grid, double[] x, double[] y, double[] z, int count, double range) {
+        if (!finished) {
+            throw new IllegalStateException("A build is already running");
+        }
+        this.grid = grid;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.count = count;
+        this.range = range;
+        failure = null;
+        waiter = Thread.currentThread();
+        finished = false;
+        requested = true;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Wait for the build started last to finish. Does nothing if there is none.
+     */
+    public void await() {
+        while (!finished) {
+            LockSupport.park(this);
+        }
+        Throwable e = failure;
+        failure = null;
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e instanceof Error) {
+            throw (Error) e;
+        }
+    }
+
+    /**
+     * Stop the thread once any build in progress is done.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(thread);
+    }
+
+    private void run() {
+        while (!closed) {
+            if (!requested) {
+                LockSupport.park(this);
+                continue;
+            }
+            requested = false;
+            try {
+                grid.build(x, y, z, count, range);
+            } catch (RuntimeException | Error e) {
+                failure = e;
+            } finally {
+                // Let go of the flock's arrays
+                x = y = z = null;
+                finished = true;
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+}
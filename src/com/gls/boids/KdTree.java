@@ -0,0 +1,352 @@
+package com.gls.boids;
+
+import java.util.Arrays;
+
+/**
+ * k-d tree over the boid positions, for k nearest neighbor queries.
+ *
+ * The tree is implicit in a permutation of the point indices: the node for the
+ * range [lo, hi) is the median at (lo + hi) / 2, split on the axis with the
+ * largest spread. It is rebuilt from scratch every step, and reuses its arrays.
+ *
+ * The field wraps on X and Z. A query that reaches past an edge is repeated from
+ * the wrapped copies of the query point, so the search range has to be less than
+ * half the field size.
+ *
+ * Queries only read the tree, so any number of threads can search at once, each
+ * with its own Search.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public class KdTree {
+
+    private static final byte AXIS_X = 0;
+    private static final byte AXIS_Y = 1;
+    private static final byte AXIS_Z = 2;
+
+    private final double sizeX, sizeZ;
+
+    private int[] order = new int[0];
+    private byte[] axis = new byte[0];
+    private double[] x, y, z;
+    private int count;
+
+    public KdTree(double sizeX, double sizeZ) {
+        this.sizeX = sizeX;
+        this.sizeZ = sizeZ;
+    }
+
+    /**
+     * Build the tree over the first count points. The arrays are referenced, not
+     * copied, and must not change until the next build.
+     */
+    public void build(double[] x, double[] y, double[] z, int count) {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.count = count;
+        if (order.length < count) {
+            order = new int[count];
+            axis = new byte[count];
+        }
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        build(0, count);
+    }
+
+    private void build(int lo, int hi) {
+        if (hi - lo <= 1) {
+            if (hi > lo) {
+                axis[lo] = AXIS_X;
+            }
+            return;
+        }
+        byte a = widestAxis(lo, hi);
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, a);
+        axis[mid] = a;
+        build(lo, mid);
+        build(mid + 1, hi);
+    }
+
+    private byte widestAxis(int lo, int hi) {
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, minZ = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE, maxZ = -Double.MAX_VALUE;
+        for (int k = lo; k < hi; k++) {
+            int i = order[k];
+            minX = Math.min(minX, x[i]);
+            maxX = Math.max(maxX, x[i]);
+            minY = Math.min(minY, y[i]);
+            maxY = Math.max(maxY, y[i]);
+            minZ = Math.min(minZ, z[i]);
+            maxZ = Math.max(maxZ, z[i]);
+        }
+        double spreadX = maxX - minX;
+        double spreadY = maxY - minY;
+        double spreadZ = maxZ - minZ;
+        if (spreadX >= spreadY && spreadX >= spreadZ) {
+            return AXIS_X;
+        }
+        return spreadY >= spreadZ ? AXIS_Y : AXIS_Z;
+    }
+
+    private double coord(int i, byte a) {
+        return a == AXIS_X ? x[i] : (a == AXIS_Y ? y[i] : z[i]);
+    }
+
+    // Quickselect, so that order[k] has the k-th smallest coordinate in [left, right],
+    // ties broken by index so the tree does not depend on the input order.
+    private void select(int left, int right, int k, byte a) {
+        while (right > left) {
+            int pivot = order[(left + right) >>> 1];
+            double pv = coord(pivot, a);
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (less(order[i], pivot, pv, a)) {
+                    i++;
+                }
+                while (less(pivot, pv, order[j], a)) {
+                    j--;
+                }
+                if (i <= j) {
+                    int t = order[i];
+                    order[i] = order[j];
+                    order[j] = t;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private boolean less(int i, int pivot, double pv, byte a) {
+        double c = coord(i, a);
+        return c < pv || (c == pv && i < pivot);
+    }
+
+    private boolean less(int pivot, double pv, int j, byte a) {
+        double c = coord(j, a);
+        return pv < c || (pv == c && pivot < j);
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Scratch space for one thread's queries.
+     */
+    public Search newSearch() {
+        return new Search();
+    }
+
+    public class Search {
+        // Max-heap on distance, so the worst of the best k is on top
+        private int[] heap = new int[0];
+        private double[] heapDist = new double[0];
+        private int size;
+        private int k;
+
+        private int self;
+        private double sx, sy, sz;
+        private double hx, hy, hz, cosHalf;
+        private boolean cone;
+        private double range2, collide2;
+        private int collisions;
+        private int[] collided = new int[4];
+        private double[] sizes;
+
+        /**
+         * Find up to k nearest points to point index within range, looking only in a
+         * cone of the given half angle around heading (hx, hy, hz). With a half angle
+         * of 180 degrees or more, or a zero heading, every direction counts.
+         *
+         * Points i closer than sizes[index] + sizes[i] / 2 are counted as
+         * collisions, whatever the cone, the same test as the grid. None can be
+         * further than collide.
+         *
+         * @return the number of neighbor indices written to out
+         */
+        public int nearest(int index, int k, double range, double hx, double hy, double hz, double halfAngle,
+            double collide, double[] sizes, int[] out) {
+            if (heap.length < k) {
+                heap = new int[k];
+                heapDist = new double[k];
+            }
+            this.k = k;
+            size = 0;
+            self = index;
+            range2 = range * range;
+            collide2 = collide * collide;
+            this.sizes = sizes;
+            collisions = 0;
+            double mag = Math.sqrt(hx * hx + hy * hy + hz * hz);
+            cone = halfAngle < 180.0 && mag > 0.0;
+            if (cone) {
+                this.hx = hx / mag;
+                this.hy = hy / mag;
+                this.hz = hz / mag;
+                cosHalf = Math.cos(Math.toRadians(halfAngle));
+            }
+
+            // Search from the point itself, then from any wrapped copies the range
+            // reaches into.
+            double px = x[index];
+            double pz = z[index];
+            double reach = Math.max(range, collide);
+            int wrapX = px - reach < -sizeX / 2.0 ? 1 : (px + reach > sizeX / 2.0 ? -1 : 0);
+            int wrapZ = pz - reach < -sizeZ / 2.0 ? 1 : (pz + reach > sizeZ / 2.0 ? -1 : 0);
+            search(px, pz, 0.0, 0.0);
+            if (wrapX != 0) {
+                search(px, pz, wrapX * sizeX, 0.0);
+            }
+            if (wrapZ != 0) {
+                search(px, pz, 0.0, wrapZ * sizeZ);
+            }
+            if (wrapX != 0 && wrapZ != 0) {
+                search(px, pz, wrapX * sizeX, wrapZ * sizeZ);
+            }
+
+            for (int n = 0; n < size; n++) {
+                out[n] = heap[n];
+            }
+            return size;
+        }
+
+        /**
+         * Collisions seen by the last query with a higher index than the query point,
+         * so each pair is only counted once.
+         */
+        public int getCollisions() {
+            return collisions;
+        }
+
+        /**
+         * The other boid in collision n of the last query.
+         */
+        public int getCollided(int n) {
+            return collided[n];
+        }
+
+        // The query point shifted by (ox, oz) stands in for its wrapped copy
+        private void search(double px, double pz, double ox, double oz) {
+            sx = px + ox;
+            sy = y[self];
+            sz = pz + oz;
+            visit(0, count);
+        }
+
+        private double worst() {
+            double limit = Math.max(range2, collide2);
+            if (size == k && k > 0) {
+                return Math.max(heapDist[0], collide2);
+            }
+            return limit;
+        }
+
+        private void visit(int lo, int hi) {
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                int i = order[mid];
+                consider(i);
+                if (hi - lo == 1) {
+                    return;
+                }
+                byte a = axis[mid];
+                double diff = (a == AXIS_X ? sx : (a == AXIS_Y ? sy : sz)) - coord(i, a);
+                // Near side first, then the far side only if it can still hold something
+                if (diff < 0.0) {
+                    visit(lo, mid);
+                    if (diff * diff > worst()) {
+                        return;
+                    }
+                    lo = mid + 1;
+                } else {
+                    visit(mid + 1, hi);
+                    if (diff * diff > worst()) {
+                        return;
+                    }
+                    hi = mid;
+                }
+            }
+        }
+
+        private void consider(int i) {
+            if (i == self) {
+                return;
+            }
+            double dx = x[i] - sx;
+            double dy = y[i] - sy;
+            double dz = z[i] - sz;
+            double d2 = dx * dx + dy * dy + dz * dz;
+            if (d2 < collide2 && self < i && Math.sqrt(d2) < sizes[self] + sizes[i] / 2.0) {
+                if (collisions == collided.length) {
+                    collided = Arrays.copyOf(collided, 2 * collisions);
+                }
+                collided[collisions++] = i;
+            }
+            if (d2 > range2) {
+                return;
+            }
+            if (cone && (dx * hx + dy * hy + dz * hz) < cosHalf * Math.sqrt(d2)) {
+                return;
+            }
+            if (size < k) {
+                heap[size] = i;
+                heapDist[size] = d2;
+                siftUp(size++);
+            } else if (k > 0 && d2 < heapDist[0]) {
+                heap[0] = i;
+                heapDist[0] = d2;
+                siftDown(0);
+            }
+        }
+
+        private void siftUp(int n) {
+            while (n > 0) {
+                int parent = (n - 1) / 2;
+                if (heapDist[parent] >= heapDist[n]) {
+                    return;
+                }
+                swap(n, parent);
+                n = parent;
+            }
+        }
+
+        private void siftDown(int n) {
+            while (true) {
+                int left = 2 * n + 1;
+                if (left >= size) {
+                    return;
+                }
+                int big = left;
+                if (left + 1 < size && heapDist[left + 1] > heapDist[left]) {
+                    big = left + 1;
+                }
+                if (heapDist[n] >= heapDist[big]) {
+                    return;
+                }
+                swap(n, big);
+                n = big;
+            }
+        }
+
+        private void swap(int a, int b) {
+            int t = heap[a];
+            heap[a] = heap[b];
+            heap[b] = t;
+            double d = heapDist[a];
+            heapDist[a] = heapDist[b];
+            heapDist[b] = d;
+        }
+    }
+}
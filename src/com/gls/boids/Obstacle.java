@@ -0,0 +1,129 @@
+package com.gls.boids;
+
+/**
+ * A solid the boids steer around: a sphere, box or cylinder, placed in the field
+ * by an affine transform.
+ *
+ * The shapes match the JavaFX ones: centered on their own origin, with the
+ * cylinder standing along Y. The signed distance is worked out in the shape's own
+ * coordinates, so it is exact under rotation and translation, and only roughly
+ * right for a scaled shape.
+ *
+ * Obstacles are baked into a DistanceField before the flock uses them.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public final class Obstacle {
+
+    public enum Shape {
+        SPHERE, BOX, CYLINDER
+    }
+
+    private static final double[] IDENTITY = { 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0 };
+
+    private final Shape shape;
+    // Radius, or half extents, or radius and half height
+    private final double a, b, c;
+    // Field to shape coordinates, three rows of an affine matrix
+    private final double[] toLocal;
+
+    private Obstacle(Shape shape, double a, double b, double c, double[] toLocal) {
+        this.shape = shape;
+        this.a = a;
+        this.b = b;
+        this.c = c;
+        this.toLocal = toLocal;
+    }
+
+    public static Obstacle sphere(double radius) {
+        return new Obstacle(Shape.SPHERE, radius, 0.0, 0.0, IDENTITY);
+    }
+
+    public static Obstacle box(double width, double height, double depth) {
+        return new Obstacle(Shape.BOX, width / 2.0, height / 2.0, depth / 2.0, IDENTITY);
+    }
+
+    public static Obstacle cylinder(double radius, double height) {
+        return new Obstacle(Shape.CYLINDER, radius, height / 2.0, 0.0, IDENTITY);
+    }
+
+    /**
+     * The same shape moved into the field. The matrix takes shape coordinates to
+     * field coordinates, as three rows of four: mxx, mxy, mxz, tx, then the Y and Z
+     * rows.
+     */
+    public Obstacle placed(double[] toField) {
+        if (toField.length != 12) {
+            throw new IllegalArgumentException("Expected a 3x4 matrix, got " + toField.length + " values");
+        }
+        double m00 = toField[0], m01 = toField[1], m02 = toField[2];
+        double m10 = toField[4], m11 = toField[5], m12 = toField[6];
+        double m20 = toField[8], m21 = toField[9], m22 = toField[10];
+        double det = m00 * (m11 * m22 - m12 * m21) - m01 * (m10 * m22 - m12 * m20) + m02 * (m10 * m21 - m11 * m20);
+        if (Math.abs(det) < 1e-12) {
+            throw new IllegalArgumentException("Transform can't be inverted");
+        }
+        // Inverse of the 3x3 part, then the translation taken back through it
+        double i00 = (m11 * m22 - m12 * m21) / det;
+        double i01 = (m02 * m21 - m01 * m22) / det;
+        double i02 = (m01 * m12 - m02 * m11) / det;
+        double i10 = (m12 * m20 - m10 * m22) / det;
+        double i11 = (m00 * m22 - m02 * m20) / det;
+        double i12 = (m02 * m10 - m00 * m12) / det;
+        double i20 = (m10 * m21 - m11 * m20) / det;
+        double i21 = (m01 * m20 - m00 * m21) / det;
+        double i22 = (m00 * m11 - m01 * m10) / det;
+        double tx = toField[3], ty = toField[7], tz = toField[11];
+        double[] inverse = {
+            i00, i01, i02, -(i00 * tx + i01 * ty + i02 * tz),
+            i10, i11, i12, -(i10 * tx + i11 * ty + i12 * tz),
+            i20, i21, i22, -(i20 * tx + i21 * ty + i22 * tz) };
+        // Placing a placed shape applies both
+        double[] l = toLocal;
+        double[] combined = new double[12];
+        for (int r = 0; r < 3; r++) {
+            for (int k = 0; k < 4; k++) {
+                double sum = k == 3 ? l[4 * r + 3] : 0.0;
+                for (int j = 0; j < 3; j++) {
+                    sum += l[4 * r + j] * inverse[4 * j + k];
+                }
+                combined[4 * r + k] = sum;
+            }
+        }
+        return new Obstacle(shape, a, b, c, combined);
+    }
+
+    public Shape getShape() {
+        return shape;
+    }
+
+    /**
+     * Signed distance from a point in the field to the surface, negative inside.
+     */
+    public double distance(double x, double y, double z) {
+        double[] m = toLocal;
+        double px = m[0] * x + m[1] * y + m[2] * z + m[3];
+        double py = m[4] * x + m[5] * y + m[6] * z + m[7];
+        double pz = m[8] * x + m[9] * y + m[10] * z + m[11];
+        switch (shape) {
+        case SPHERE:
+            return Math.sqrt(px * px + py * py + pz * pz) - a;
+        case BOX: {
+            double qx = Math.abs(px) - a;
+            double qy = Math.abs(py) - b;
+            double qz = Math.abs(pz) - c;
+            double ox = Math.max(qx, 0.0);
+            double oy = Math.max(qy, 0.0);
+            double oz = Math.max(qz, 0.0);
+            return Math.sqrt(ox * ox + oy * oy + oz * oz) + Math.min(Math.max(qx, Math.max(qy, qz)), 0.0);
+        }
+        default: {
+            double dr = Math.sqrt(px * px + pz * pz) - a;
+            double dy = Math.abs(py) - b;
+            double or = Math.max(dr, 0.0);
+            double oy = Math.max(dy, 0.0);
+            return Math.min(Math.max(dr, dy), 0.0) + Math.sqrt(or * or + oy * oy);
+        }
+        }
+    }
+}
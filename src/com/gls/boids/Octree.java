@@ -0,0 +1,449 @@
+package com.gls.boids;
+
+import java.util.Arrays;
+
+/**
+ * Octree over the boid positions, for Barnes-Hut neighbor sums.
+ *
+ * Every node keeps the number of boids under it, their center of mass and the
+ * sum of their velocities. A query walks down from the root. A node that looks
+ * small from the query point, its width less than theta times the distance to
+ * its center of mass, is taken as one aggregate neighbor standing at the center
+ * of mass, and is not opened. Cohesion and alignment only need the sums, which
+ * a whole node in range gives exactly. The error comes from the inverse square
+ * rules, and from nodes on the edge of the view, which count in or out as a
+ * whole. With theta 0 every node is opened and the result is exact.
+ *
+ * Like KdTree it is rebuilt from scratch every step, reuses its arrays, and can
+ * be searched by any number of threads at once, each with its own Search. The
+ * same wrap around on X and Z applies, the search range has to be less than half
+ * the field size.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public class Octree {
+
+    // Nodes with this many boids or fewer are not split
+    private static final int LEAF_SIZE = 8;
+    // Boids sitting on the same spot can't be split apart, stop somewhere
+    private static final int MAX_DEPTH = 24;
+
+    private final double sizeX, sizeZ;
+
+    private int[] order = new int[0];
+    private double[] x, y, z, vx, vy, vz;
+    private int count;
+
+    // Nodes. A leaf holds order[first, last), any other node has the child nodes
+    // [first, last).
+    private int numNodes;
+    private double[] centerX = new double[0];
+    private double[] centerY = new double[0];
+    private double[] centerZ = new double[0];
+    private double[] half = new double[0];
+    private boolean[] leaf = new boolean[0];
+    private int[] first = new int[0];
+    private int[] last = new int[0];
+    private int[] weight = new int[0];
+    private double[] massX = new double[0];
+    private double[] massY = new double[0];
+    private double[] massZ = new double[0];
+    private double[] velX = new double[0];
+    private double[] velY = new double[0];
+    private double[] velZ = new double[0];
+    // Octant boundaries, 9 per level
+    private final int[] cuts = new int[9 * (MAX_DEPTH + 1)];
+
+    public Octree(double sizeX, double sizeZ) {
+        this.sizeX = sizeX;
+        this.sizeZ = sizeZ;
+    }
+
+    /**
+     * Build the tree over the first count boids. The arrays are referenced, not
+     * copied, and must not change until the next build.
+     */
+    public void build(double[] x, double[] y, double[] z, double[] vx, double[] vy, double[] vz, int count) {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.vx = vx;
+        this.vy = vy;
+        this.vz = vz;
+        this.count = count;
+        if (order.length < count) {
+            order = new int[count];
+        }
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+
+        // A cube around everything, Y can be outside the field
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, minZ = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE, maxZ = -Double.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            minX = Math.min(minX, x[i]);
+            maxX = Math.max(maxX, x[i]);
+            minY = Math.min(minY, y[i]);
+            maxY = Math.max(maxY, y[i]);
+            minZ = Math.min(minZ, z[i]);
+            maxZ = Math.max(maxZ, z[i]);
+        }
+        double h = count == 0 ? 0.0 : Math.max(maxX - minX, Math.max(maxY - minY, maxZ - minZ)) / 2.0;
+        numNodes = 1;
+        ensureNodes(1);
+        build(0, 0, count, (minX + maxX) / 2.0, (minY + maxY) / 2.0, (minZ + maxZ) / 2.0, h, 0);
+    }
+
+    private void build(int node, int lo, int hi, double cx, double cy, double cz, double h, int depth) {
+        centerX[node] = cx;
+        centerY[node] = cy;
+        centerZ[node] = cz;
+        half[node] = h;
+        if (hi - lo <= LEAF_SIZE || depth == MAX_DEPTH) {
+            leaf[node] = true;
+            first[node] = lo;
+            last[node] = hi;
+            double sx = 0.0, sy = 0.0, sz = 0.0;
+            double svx = 0.0, svy = 0.0, svz = 0.0;
+            for (int k = lo; k < hi; k++) {
+                int i = order[k];
+                sx += x[i];
+                sy += y[i];
+                sz += z[i];
+                svx += vx[i];
+                svy += vy[i];
+                svz += vz[i];
+            }
+            setSums(node, hi - lo, sx, sy, sz, svx, svy, svz);
+            return;
+        }
+
+        // Split on X, then each half on Y, then each quarter on Z
+        int c = 9 * depth;
+        cuts[c] = lo;
+        cuts[c + 8] = hi;
+        cuts[c + 4] = partition(lo, hi, x, cx);
+        cuts[c + 2] = partition(lo, cuts[c + 4], y, cy);
+        cuts[c + 6] = partition(cuts[c + 4], hi, y, cy);
+        cuts[c + 1] = partition(lo, cuts[c + 2], z, cz);
+        cuts[c + 3] = partition(cuts[c + 2], cuts[c + 4], z, cz);
+        cuts[c + 5] = partition(cuts[c + 4], cuts[c + 6], z, cz);
+        cuts[c + 7] = partition(cuts[c + 6], hi, z, cz);
+
+        int kids = 0;
+        for (int o = 0; o < 8; o++) {
+            if (cuts[c + o + 1] > cuts[c + o]) {
+                kids++;
+            }
+        }
+        int child = numNodes;
+        numNodes += kids;
+        ensureNodes(numNodes);
+        leaf[node] = false;
+        first[node] = child;
+        last[node] = child + kids;
+
+        double q = h / 2.0;
+        for (int o = 0; o < 8; o++) {
+            int from = cuts[c + o];
+            int to = cuts[c + o + 1];
+            if (to > from) {
+                double ox = (o & 4) == 0 ? -q : q;
+                double oy = (o & 2) == 0 ? -q : q;
+                double oz = (o & 1) == 0 ? -q : q;
+                build(child++, from, to, cx + ox, cy + oy, cz + oz, q, depth + 1);
+            }
+        }
+
+        double sx = 0.0, sy = 0.0, sz = 0.0;
+        double svx = 0.0, svy = 0.0, svz = 0.0;
+        for (int k = first[node]; k < last[node]; k++) {
+            sx += massX[k] * weight[k];
+            sy += massY[k] * weight[k];
+            sz += massZ[k] * weight[k];
+            svx += velX[k];
+            svy += velY[k];
+            svz += velZ[k];
+        }
+        setSums(node, hi - lo, sx, sy, sz, svx, svy, svz);
+    }
+
+    private void setSums(int node, int n, double sx, double sy, double sz, double svx, double svy, double svz) {
+        weight[node] = n;
+        massX[node] = n == 0 ? 0.0 : sx / n;
+        massY[node] = n == 0 ? 0.0 : sy / n;
+        massZ[node] = n == 0 ? 0.0 : sz / n;
+        velX[node] = svx;
+        velY[node] = svy;
+        velZ[node] = svz;
+    }
+
+    // Move the points below split to the front of order[lo, hi), return where the
+    // rest start
+    private int partition(int lo, int hi, double[] c, double split) {
+        int i = lo;
+        int j = hi - 1;
+        while (i <= j) {
+            if (c[order[i]] < split) {
+                i++;
+            } else {
+                int t = order[i];
+                order[i] = order[j];
+                order[j] = t;
+                j--;
+            }
+        }
+        return i;
+    }
+
+    // Only grows while the flock is settling, so a steady build does not allocate
+    private void ensureNodes(int n) {
+        if (centerX.length >= n) {
+            return;
+        }
+        int capacity = Math.max(n, 2 * centerX.length);
+        centerX = Arrays.copyOf(centerX, capacity);
+        centerY = Arrays.copyOf(centerY, capacity);
+        centerZ = Arrays.copyOf(centerZ, capacity);
+        half = Arrays.copyOf(half, capacity);
+        leaf = Arrays.copyOf(leaf, capacity);
+        first = Arrays.copyOf(first, capacity);
+        last = Arrays.copyOf(last, capacity);
+        weight = Arrays.copyOf(weight, capacity);
+        massX = Arrays.copyOf(massX, capacity);
+        massY = Arrays.copyOf(massY, capacity);
+        massZ = Arrays.copyOf(massZ, capacity);
+        velX = Arrays.copyOf(velX, capacity);
+        velY = Arrays.copyOf(velY, capacity);
+        velZ = Arrays.copyOf(velZ, capacity);
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getNumNodes() {
+        return numNodes;
+    }
+
+    /**
+     * Scratch space for one thread's queries.
+     */
+    public Search newSearch() {
+        return new Search();
+    }
+
+    public class Search {
+        // Neighbors found by the last query. A single boid has its index, a weight
+        // of one and its own velocity, an aggregate no index, the number of boids
+        // and their summed velocity.
+        private int[] item = new int[16];
+        private double[] offX = new double[16];
+        private double[] offY = new double[16];
+        private double[] offZ = new double[16];
+        private double[] wgt = new double[16];
+        private double[] sumVX = new double[16];
+        private double[] sumVY = new double[16];
+        private double[] sumVZ = new double[16];
+        private int size;
+        private int total;
+        private int[] stack = new int[64];
+
+        private int self;
+        private double px, py, pz;
+        private double hx, hy, hz, cosHalf;
+        private boolean cone;
+        private double range2, collide2, reach2, theta2;
+        private int collisions;
+        private int[] collided = new int[4];
+        private double[] sizes;
+
+        /**
+         * Gather the neighbors of boid index within range, looking only in a cone of
+         * the given half angle around heading (hx, hy, hz), with far nodes taken as
+         * one. Boids i closer than sizes[index] + sizes[i] / 2 are counted as
+         * collisions, the same test as the grid. None can be further than collide,
+         * and nothing that close hides in an aggregate.
+         *
+         * @return the number of neighbors, single or aggregate
+         */
+        public int gather(int index, double range, double theta, double hx, double hy, double hz, double halfAngle,
+            double collide, double[] sizes) {
+            size = 0;
+            total = 0;
+            collisions = 0;
+            self = index;
+            px = x[index];
+            py = y[index];
+            pz = z[index];
+            range2 = range * range;
+            collide2 = collide * collide;
+            this.sizes = sizes;
+            double reach = Math.max(range, collide);
+            reach2 = reach * reach;
+            theta2 = theta * theta;
+            double mag = Math.sqrt(hx * hx + hy * hy + hz * hz);
+            cone = halfAngle < 180.0 && mag > 0.0;
+            if (cone) {
+                this.hx = hx / mag;
+                this.hy = hy / mag;
+                this.hz = hz / mag;
+                cosHalf = Math.cos(Math.toRadians(halfAngle));
+            }
+
+            int top = 0;
+            stack[top++] = 0;
+            while (top > 0) {
+                int node = stack[--top];
+                // Nearest the node's box comes, over the wrapped copies
+                double dx = SpatialGrid.wrap(centerX[node] - px, sizeX);
+                double dy = centerY[node] - py;
+                double dz = SpatialGrid.wrap(centerZ[node] - pz, sizeZ);
+                double h = half[node];
+                double ex = Math.max(Math.abs(dx) - h, 0.0);
+                double ey = Math.max(Math.abs(dy) - h, 0.0);
+                double ez = Math.max(Math.abs(dz) - h, 0.0);
+                double near2 = ex * ex + ey * ey + ez * ez;
+                if (near2 > reach2) {
+                    continue;
+                }
+                if (leaf[node]) {
+                    for (int k = first[node]; k < last[node]; k++) {
+                        consider(order[k]);
+                    }
+                    continue;
+                }
+                double mx = SpatialGrid.wrap(massX[node] - px, sizeX);
+                double my = massY[node] - py;
+                double mz = SpatialGrid.wrap(massZ[node] - pz, sizeZ);
+                double d2 = mx * mx + my * my + mz * mz;
+                if (near2 > collide2 && 4.0 * h * h < theta2 * d2) {
+                    if (d2 <= range2 && inView(mx, my, mz, d2)) {
+                        add(-1, mx, my, mz, weight[node], velX[node], velY[node], velZ[node]);
+                    }
+                    continue;
+                }
+                if (stack.length < top + 8) {
+                    stack = Arrays.copyOf(stack, 2 * stack.length);
+                }
+                // Pushed backwards, so the children come off in order
+                for (int k = last[node] - 1; k >= first[node]; k--) {
+                    stack[top++] = k;
+                }
+            }
+            return size;
+        }
+
+        private void consider(int i) {
+            if (i == self) {
+                return;
+            }
+            double dx = SpatialGrid.wrap(x[i] - px, sizeX);
+            double dy = y[i] - py;
+            double dz = SpatialGrid.wrap(z[i] - pz, sizeZ);
+            double d2 = dx * dx + dy * dy + dz * dz;
+            if (d2 < collide2 && self < i && Math.sqrt(d2) < sizes[self] + sizes[i] / 2.0) {
+                if (collisions == collided.length) {
+                    collided = Arrays.copyOf(collided, 2 * collisions);
+                }
+                collided[collisions++] = i;
+            }
+            if (d2 <= range2 && inView(dx, dy, dz, d2)) {
+                add(i, dx, dy, dz, 1, vx[i], vy[i], vz[i]);
+            }
+        }
+
+        private boolean inView(double dx, double dy, double dz, double d2) {
+            return !cone || (dx * hx + dy * hy + dz * hz) >= cosHalf * Math.sqrt(d2);
+        }
+
+        private void add(int i, double dx, double dy, double dz, int n, double svx, double svy, double svz) {
+            if (size == offX.length) {
+                int capacity = 2 * size;
+                item = Arrays.copyOf(item, capacity);
+                offX = Arrays.copyOf(offX, capacity);
+                offY = Arrays.copyOf(offY, capacity);
+                offZ = Arrays.copyOf(offZ, capacity);
+                wgt = Arrays.copyOf(wgt, capacity);
+                sumVX = Arrays.copyOf(sumVX, capacity);
+                sumVY = Arrays.copyOf(sumVY, capacity);
+                sumVZ = Arrays.copyOf(sumVZ, capacity);
+            }
+            item[size] = i;
+            offX[size] = dx;
+            offY[size] = dy;
+            offZ[size] = dz;
+            wgt[size] = n;
+            sumVX[size] = svx;
+            sumVY[size] = svy;
+            sumVZ[size] = svz;
+            size++;
+            total += n;
+        }
+
+        /**
+         * Neighbors found by the last query, single or aggregate.
+         */
+        public int getSize() {
+            return size;
+        }
+
+        /**
+         * Boids counted by the last query, aggregates by the number they stand for.
+         */
+        public int getTotal() {
+            return total;
+        }
+
+        /**
+         * Collisions seen by the last query with a higher index than the query point,
+         * so each pair is only counted once.
+         */
+        public int getCollisions() {
+            return collisions;
+        }
+
+        /**
+         * The other boid in collision n of the last query.
+         */
+        public int getCollided(int n) {
+            return collided[n];
+        }
+
+        /**
+         * The boid index of neighbor k, or -1 for an aggregate.
+         */
+        public int getItem(int k) {
+            return item[k];
+        }
+
+        public double getOffsetX(int k) {
+            return offX[k];
+        }
+
+        public double getOffsetY(int k) {
+            return offY[k];
+        }
+
+        public double getOffsetZ(int k) {
+            return offZ[k];
+        }
+
+        public double getWeight(int k) {
+            return wgt[k];
+        }
+
+        public double getVelocityX(int k) {
+            return sumVX[k];
+        }
+
+        public double getVelocityY(int k) {
+            return sumVY[k];
+        }
+
+        public double getVelocityZ(int k) {
+            return sumVZ[k];
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.gls.boids;
+
+import java.util.Arrays;
+
+/**
+ * Percentiles over the most recent samples of a timing.
+ *
+ * Samples go into a fixed ring, so recording never allocates. The percentiles
+ * are worked out on demand from a sorted copy, which is meant to be done a few
+ * times a second for display, not on every sample.
+ *
+ * Not thread safe. Record and read on the same thread.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public class RollingHistogram {
+
+    private final String name;
+    private final long[] samples;
+    private final long[] sorted;
+    private int next;
+    private int size;
+    private boolean dirty;
+
+    public RollingHistogram(String name, int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("Window must be at least 1: " + window);
+        }
+        this.name = name;
+        samples = new long[window];
+        sorted = new long[window];
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void record(long value) {
+        samples[next] = value;
+        next = (next + 1) % samples.length;
+        size = Math.min(size + 1, samples.length);
+        dirty = true;
+    }
+
+    public void reset() {
+        next = 0;
+        size = 0;
+        dirty = true;
+    }
+
+    /**
+     * Number of samples in the window.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * The value at or below which the given fraction of the samples in the window
+     * fall, or 0 with no samples.
+     */
+    public long percentile(double fraction) {
+        if (size == 0) {
+            return 0;
+        }
+        sort();
+        int rank = (int) Math.ceil(fraction * size) - 1;
+        return sorted[Math.max(0, Math.min(size - 1, rank))];
+    }
+
+    public long getMax() {
+        return percentile(1.0);
+    }
+
+    private void sort() {
+        if (dirty) {
+            System.arraycopy(samples, 0, sorted, 0, size);
+            Arrays.sort(sorted, 0, size);
+            dirty = false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: p50 %.2f ms, p99 %.2f ms, max %.2f ms", name, percentile(0.5) / 1.0e6,
+            percentile(0.99) / 1.0e6, getMax() / 1.0e6);
+    }
+}
@@ -0,0 +1,33 @@
+package com.gls.boids;
+
+/**
+ * One point at a time. Works on every JVM, and is the reference for the vector
+ * kernel.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public class ScalarDistanceKernel implements DistanceKernel {
+
+    @Override
+    public int collect(double[] x, double[] y, double[] z, int[] items, int from, int to, double px, double py,
+        double pz, double range2, double sizeX, double sizeZ, int self, int[] out, int n) {
+        for (int s = from; s < to; s++) {
+            int other = items[s];
+            if (other == self) {
+                continue;
+            }
+            double dx = SpatialGrid.wrap(x[s] - px, sizeX);
+            double dy = y[s] - py;
+            double dz = SpatialGrid.wrap(z[s] - pz, sizeZ);
+            if (dx * dx + dy * dy + dz * dz <= range2) {
+                out[n++] = other;
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public String getName() {
+        return "scalar";
+    }
+}
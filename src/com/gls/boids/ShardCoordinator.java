@@ -0,0 +1,351 @@
+package com.gls.boids;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Steps a flock spread over several ShardServer processes, one slab of the field
+ * along X each.
+ *
+ * The coordinator keeps the whole flock. Every step it sends each shard the boids
+ * whose X falls in its slab, plus as ghosts every other boid within reach of the
+ * slab: the view radius, or the collision distance if that is larger, wrapping
+ * around the X edges. All shards step at once, and the owned boids come back and
+ * are written into the flock, which the renderer reads as usual. Shards keep
+ * nothing between steps, so a boid that crosses into the next slab simply goes to
+ * the next shard, and ghosts are exchanged through the coordinator rather than
+ * from shard to shard.
+ *
+ * Each shard gets its boids in index order, so in METRIC mode every boid sees the
+ * same neighbors in the same order as in one flock, and the result matches it to
+ * the last bit. TOPOLOGICAL mode finds the same neighbors, but the k-d tree over a
+ * slab may give them in another order. BARNES_HUT builds its octree over a slab,
+ * so its aggregates, and its error, are not the same as in one flock.
+ *
+ * Use it as the stepper of a FlockSimulation, on that one thread.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public class ShardCoordinator implements FlockStepper, Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final long EXIT_WAIT_MILLIS = 2000;
+
+    private final Shard[] shards;
+    private final double sizeX, sizeY, sizeZ;
+
+    public ShardCoordinator(List<InetSocketAddress> addresses, double sizeX, double sizeY, double sizeZ)
+        throws IOException {
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        shards = new Shard[addresses.size()];
+        try {
+            for (int s = 0; s < shards.length; s++) {
+                shards[s] = new Shard(addresses.get(s), null);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private ShardCoordinator(Shard[] shards, double sizeX, double sizeY, double sizeZ) {
+        this.shards = shards;
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+    }
+
+    /**
+     * Start shard servers on this machine, each in its own JVM with the same class
+     * path as this one, and connect to them. Closing the coordinator stops them.
+     */
+    public static ShardCoordinator launch(int count, int threadsPerShard, double sizeX, double sizeY, double sizeZ)
+        throws IOException {
+        if (count < 1) {
+            throw new IllegalArgumentException("Need at least one shard: " + count);
+        }
+        Shard[] shards = new Shard[count];
+        ShardCoordinator coordinator = new ShardCoordinator(shards, sizeX, sizeY, sizeZ);
+        try {
+            for (int s = 0; s < count; s++) {
+                Process process = startServer(threadsPerShard);
+                shards[s] = coordinator.new Shard(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), readPort(process)), process);
+            }
+        } catch (IOException e) {
+            coordinator.close();
+            throw e;
+        }
+        return coordinator;
+    }
+
+    private static Process startServer(int threads) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            command.add("--add-modules");
+            command.add("jdk.incubator.vector");
+        }
+        command.add(ShardServer.class.getName());
+        command.add("-port");
+        command.add("0");
+        command.add("-threads");
+        command.add(Integer.toString(threads));
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        return builder.start();
+    }
+
+    private static int readPort(Process process) throws IOException {
+        BufferedReader reader = new BufferedReader(
+            new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        String line = reader.readLine();
+        if (line == null || !line.startsWith(ShardProtocol.READY)) {
+            process.destroy();
+            throw new IOException("Shard did not start: " + line);
+        }
+        return Integer.parseInt(line.substring(ShardProtocol.READY.length()).trim());
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Boids sent to shard s on the last step, owned and ghosts.
+     */
+    public int getSent(int s) {
+        return shards[s].count;
+    }
+
+    /**
+     * Boids owned by shard s on the last step.
+     */
+    public int getOwned(int s) {
+        return shards[s].owned;
+    }
+
+    @Override
+    public void step(Flock flock) {
+        try {
+            partition(flock);
+            double sizeFloor = maxSize(flock);
+            for (Shard shard : shards) {
+                shard.send(flock, sizeFloor);
+            }
+            int breakCount = 0;
+            int collisions = 0;
+            long neighborNanos = 0;
+            long steeringNanos = 0;
+            // The shards run at once, so the slowest one is the step
+            for (Shard shard : shards) {
+                shard.receive(flock);
+                breakCount += shard.breakCount;
+                collisions += shard.collisions;
+                neighborNanos = Math.max(neighborNanos, shard.neighborNanos);
+                steeringNanos = Math.max(steeringNanos, shard.steeringNanos);
+            }
+            flock.setStepResults(breakCount, collisions, neighborNanos, steeringNanos);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Sort every boid into its own slab, and into any other slab it is in reach of
+    private void partition(Flock flock) {
+        int count = flock.getCount();
+        double reach = Math.max(flock.getView(), 2.0 * maxSize(flock));
+        double width = sizeX / shards.length;
+        for (Shard shard : shards) {
+            shard.clear(count);
+        }
+        for (int i = 0; i < count; i++) {
+            double x = flock.getX(i);
+            int home = (int) Math.floor((x + sizeX / 2.0) / width);
+            home = Math.max(0, Math.min(shards.length - 1, home));
+            shards[home].add(i, true);
+            if (shards.length == 1) {
+                continue;
+            }
+            for (int s = 0; s < shards.length; s++) {
+                if (s != home && distanceToSlab(x, s, width) <= reach) {
+                    shards[s].add(i, false);
+                }
+            }
+        }
+    }
+
+    // Distance along X from x to slab s, the short way around
+    private double distanceToSlab(double x, int s, double width) {
+        double from = -sizeX / 2.0 + s * width;
+        double to = from + width;
+        double best = Double.MAX_VALUE;
+        for (int k = -1; k <= 1; k++) {
+            double px = x + k * sizeX;
+            double d = px < from ? from - px : (px > to ? px - to : 0.0);
+            best = Math.min(best, d);
+        }
+        return best;
+    }
+
+    private static double maxSize(Flock flock) {
+        double max = 0.0;
+        for (int i = 0; i < flock.getCount(); i++) {
+            max = Math.max(max, flock.getSize(i));
+        }
+        return max;
+    }
+
+    /**
+     * Tell the shards to stop, and wait for any this coordinator started to exit.
+     */
+    @Override
+    public void close() {
+        for (Shard shard : shards) {
+            if (shard != null) {
+                shard.close();
+            }
+        }
+    }
+
+    /**
+     * The connection to one shard, and the boids sent to it this step.
+     */
+    private final class Shard {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final Process process;
+
+        // Flock indices sent this step, in order, and which of them the shard owns
+        private int[] items = new int[0];
+        private boolean[] ownedFlags = new boolean[0];
+        private int count;
+        private int owned;
+
+        private int breakCount;
+        private int collisions;
+        private long neighborNanos;
+        private long steeringNanos;
+
+        Shard(InetSocketAddress address, Process process) throws IOException {
+            this.process = process;
+            socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.connect(address);
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+                out.writeInt(ShardProtocol.MAGIC);
+                out.writeInt(ShardProtocol.VERSION);
+                out.writeDouble(sizeX);
+                out.writeDouble(sizeY);
+                out.writeDouble(sizeZ);
+                out.flush();
+            } catch (IOException e) {
+                socket.close();
+                if (process != null) {
+                    process.destroy();
+                }
+                throw e;
+            }
+        }
+
+        // Room for every boid, so adding never has to check
+        void clear(int capacity) {
+            if (items.length < capacity) {
+                int size = Math.max(capacity, 2 * items.length);
+                items = new int[size];
+                ownedFlags = new boolean[size];
+            }
+            count = 0;
+            owned = 0;
+        }
+
+        void add(int index, boolean own) {
+            items[count] = index;
+            ownedFlags[count] = own;
+            count++;
+            if (own) {
+                owned++;
+            }
+        }
+
+        void send(Flock flock, double sizeFloor) throws IOException {
+            out.writeInt(ShardProtocol.STEP);
+            ShardProtocol.writeParameters(out, flock, sizeFloor);
+            out.writeInt(count);
+            for (int k = 0; k < count; k++) {
+                int i = items[k];
+                out.writeBoolean(ownedFlags[k]);
+                out.writeDouble(flock.getX(i));
+                out.writeDouble(flock.getY(i));
+                out.writeDouble(flock.getZ(i));
+                out.writeDouble(flock.getVX(i));
+                out.writeDouble(flock.getVY(i));
+                out.writeDouble(flock.getVZ(i));
+                out.writeDouble(flock.getSize(i));
+            }
+            out.flush();
+        }
+
+        void receive(Flock flock) throws IOException {
+            breakCount = in.readInt();
+            collisions = in.readInt();
+            neighborNanos = in.readLong();
+            steeringNanos = in.readLong();
+            for (int k = 0; k < count; k++) {
+                if (!ownedFlags[k]) {
+                    continue;
+                }
+                int i = items[k];
+                flock.setPosition(i, in.readDouble(), in.readDouble(), in.readDouble());
+                flock.setVelocity(i, in.readDouble(), in.readDouble(), in.readDouble());
+                flock.setNumNearby(i, in.readInt());
+            }
+        }
+
+        void close() {
+            try {
+                out.writeInt(ShardProtocol.CLOSE);
+                out.flush();
+            } catch (IOException e) {
+                // Already gone
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing more to do
+            }
+            if (process != null) {
+                try {
+                    if (!process.waitFor(EXIT_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                        process.destroy();
+                    }
+                } catch (InterruptedException e) {
+                    process.destroy();
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
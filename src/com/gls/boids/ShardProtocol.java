@@ -0,0 +1,72 @@
+package com.gls.boids;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Messages between a ShardCoordinator and its ShardServers, over one TCP
+ * connection per shard, big endian as DataOutputStream writes them.
+ *
+ * <pre>
+ * hello    coordinator to shard, once
+ *          int MAGIC, int VERSION, double sizeX, sizeY, sizeZ
+ * step     coordinator to shard, every step
+ *          int STEP, parameters, int n,
+ *          n times: boolean owned, double x, y, z, vx, vy, vz, size
+ * result   shard to coordinator, after each step
+ *          int breakCount, int collisions, long neighborNanos, long steeringNanos,
+ *          for each owned boid in order: double x, y, z, vx, vy, vz, int numNearby
+ * close    coordinator to shard
+ *          int CLOSE
+ * </pre>
+ *
+ * The parameters are the flock's, see writeParameters(). Boids are sent in index
+ * order, owned boids and ghosts mixed, and the results come back in the same
+ * order, so no ids are needed.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+final class ShardProtocol {
+
+    static final int MAGIC = 0x424f4944;
+    static final int VERSION = 2;
+    static final int STEP = 1;
+    static final int CLOSE = 2;
+
+    // A shard prints this and its port on its first line of output
+    static final String READY = "Shard listening on port ";
+
+    private ShardProtocol() {
+    }
+
+    static void writeParameters(DataOutputStream out, Flock flock, double sizeFloor) throws IOException {
+        out.writeDouble(flock.getView());
+        out.writeDouble(flock.getPullScale());
+        out.writeDouble(flock.getPushScale());
+        out.writeBoolean(flock.isCenter());
+        out.writeInt(flock.getToward().ordinal());
+        out.writeInt(flock.getNeighbors().ordinal());
+        out.writeInt(flock.getNumNearest());
+        out.writeDouble(flock.getOpeningAngle());
+        out.writeDouble(flock.getViewAngle());
+        out.writeInt(flock.getKernel().ordinal());
+        out.writeBoolean(flock.isVectorized());
+        out.writeDouble(sizeFloor);
+    }
+
+    static void readParameters(DataInputStream in, Flock flock) throws IOException {
+        flock.setView(in.readDouble());
+        flock.setPullScale(in.readDouble());
+        flock.setPushScale(in.readDouble());
+        flock.setCenter(in.readBoolean());
+        flock.setToward(Flock.Toward.values()[in.readInt()]);
+        flock.setNeighbors(Flock.Neighbors.values()[in.readInt()]);
+        flock.setNumNearest(in.readInt());
+        flock.setOpeningAngle(in.readDouble());
+        flock.setViewAngle(in.readDouble());
+        flock.setKernel(Flock.Kernel.values()[in.readInt()]);
+        flock.setVectorized(in.readBoolean());
+        flock.setSizeFloor(in.readDouble());
+    }
+}
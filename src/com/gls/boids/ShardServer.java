@@ -0,0 +1,113 @@
+package com.gls.boids;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * One slab of a sharded flock, run in its own JVM.
+ *
+ * <pre>
+ * java -cp bin com.gls.boids.ShardServer -port 0 -threads 4
+ * </pre>
+ *
+ * The server listens on the loopback address, prints the port it got, and serves
+ * one coordinator until it closes. Every step it is sent the boids it owns plus
+ * the ghosts near its edges, steps them as a flock with the ghosts held still, and
+ * sends back the owned boids. It keeps nothing between steps, so boids can move
+ * from slab to slab freely. See ShardCoordinator and ShardProtocol.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public class ShardServer {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final int threads;
+
+    public ShardServer(int threads) {
+        this.threads = threads;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = 0;
+        int threads = 1;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+            case "-port":
+                port = Integer.parseInt(args[i + 1]);
+                break;
+            case "-threads":
+                threads = Integer.parseInt(args[i + 1]);
+                break;
+            default:
+                System.err.println("Usage: ShardServer [-port P] [-threads T]");
+                System.exit(2);
+            }
+        }
+        try (ServerSocket server = new ServerSocket(port, 1, InetAddress.getLoopbackAddress())) {
+            System.out.println(ShardProtocol.READY + server.getLocalPort());
+            System.out.flush();
+            try (Socket socket = server.accept()) {
+                new ShardServer(threads).serve(socket);
+            }
+        }
+    }
+
+    public void serve(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+        if (in.readInt() != ShardProtocol.MAGIC || in.readInt() != ShardProtocol.VERSION) {
+            throw new IOException("Not a shard coordinator");
+        }
+        Flock flock = new Flock(0, in.readDouble(), in.readDouble(), in.readDouble());
+        flock.setParallelism(threads);
+        try {
+            while (in.readInt() == ShardProtocol.STEP) {
+                step(flock, in, out);
+            }
+        } catch (EOFException e) {
+            // The coordinator went away without saying goodbye
+        } finally {
+            flock.setParallelism(1);
+        }
+    }
+
+    private void step(Flock flock, DataInputStream in, DataOutputStream out) throws IOException {
+        ShardProtocol.readParameters(in, flock);
+        int n = in.readInt();
+        flock.setCount(n);
+        for (int i = 0; i < n; i++) {
+            flock.setGhost(i, !in.readBoolean());
+            flock.setPosition(i, in.readDouble(), in.readDouble(), in.readDouble());
+            flock.setVelocity(i, in.readDouble(), in.readDouble(), in.readDouble());
+            flock.setSize(i, in.readDouble());
+        }
+
+        flock.step();
+
+        out.writeInt(flock.getBreakCount());
+        out.writeInt(flock.getCollisions());
+        out.writeLong(flock.getNeighborNanos());
+        out.writeLong(flock.getSteeringNanos());
+        for (int i = 0; i < n; i++) {
+            if (!flock.isGhost(i)) {
+                out.writeDouble(flock.getX(i));
+                out.writeDouble(flock.getY(i));
+                out.writeDouble(flock.getZ(i));
+                out.writeDouble(flock.getVX(i));
+                out.writeDouble(flock.getVY(i));
+                out.writeDouble(flock.getVZ(i));
+                out.writeInt(flock.getNumNearby(i));
+            }
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,87 @@
+package com.gls.boids;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Layout of the shared memory file written by SharedStateExporter. Everything is
+ * little endian, and offsets are in bytes.
+ *
+ * <pre>
+ * Header, 64 bytes
+ *  0  8 bytes  magic "BOIDSHM1"
+ *  8  int      version
+ * 12  int      slots
+ * 16  int      capacity, boids per slot
+ * 20  int      slot bytes
+ * 24  long     latest, the sequence number of the newest whole frame, 0 for none
+ * 32  double   field size X, Y and Z
+ * 56  long     nanoseconds per step
+ *
+ * Slot s starts at 64 + s * slotBytes
+ *  0  long     sequence, odd while the slot is being written
+ *  8  long     step
+ * 16  long     wall clock time of the step, nanoseconds since 1970
+ * 24  int      count, boids in this frame
+ * 28  int      break count
+ * 32  int      collisions
+ * 64  double   x[capacity], then y, z, vx, vy and vz, each capacity long
+ *     int      numNearby[capacity]
+ * </pre>
+ *
+ * Frame n (counting from 1) goes in slot (n - 1) % slots. To publish it the writer
+ * sets the slot sequence to 2n - 1, writes the frame, sets the sequence to 2n and
+ * then sets latest to n, each store ordered after the ones before it.
+ *
+ * To read, a reader loads latest, say n, and the sequence of its slot. If that is
+ * not 2n the frame is being written over, start again. Otherwise read what is
+ * needed straight from the slot, then load the sequence again. If it is still 2n
+ * the data read is one whole frame. The writer never waits on a reader.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+final class SharedState {
+
+    static final byte[] MAGIC = "BOIDSHM1".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 64;
+
+    static final int SLOTS_OFFSET = 12;
+    static final int CAPACITY_OFFSET = 16;
+    static final int SLOT_BYTES_OFFSET = 20;
+    static final int LATEST_OFFSET = 24;
+    static final int SIZE_X_OFFSET = 32;
+    static final int SIZE_Y_OFFSET = 40;
+    static final int SIZE_Z_OFFSET = 48;
+    static final int STEP_NANOS_OFFSET = 56;
+
+    static final int SEQUENCE = 0;
+    static final int STEP = 8;
+    static final int TIME = 16;
+    static final int COUNT = 24;
+    static final int BREAK_COUNT = 28;
+    static final int COLLISIONS = 32;
+    static final int SLOT_HEADER_BYTES = 64;
+
+    // Ordered loads and stores of the header and sequence longs
+    static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private SharedState() {
+    }
+
+    static int slotBytes(int capacity) {
+        long bytes = SLOT_HEADER_BYTES + capacity * (6L * Double.BYTES + Integer.BYTES);
+        bytes = (bytes + 63) & ~63L;
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Capacity too large: " + capacity);
+        }
+        return (int) bytes;
+    }
+
+    // Array a of the slot: 0 to 5 for x, y, z, vx, vy, vz, 6 for numNearby
+    static int arrayOffset(int capacity, int a) {
+        return SLOT_HEADER_BYTES + a * capacity * Double.BYTES;
+    }
+}
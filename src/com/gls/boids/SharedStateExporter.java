@@ -0,0 +1,138 @@
+package com.gls.boids;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Publishes the flock after every step into a memory mapped ring of frames that
+ * other processes can read while it runs, see SharedState for the layout and
+ * SharedStateReader for a reader.
+ *
+ * Publishing never waits. Readers check a sequence number around what they read
+ * instead, so a slow reader only ever misses frames. Once the file is mapped,
+ * publishing does not allocate.
+ *
+ * A flock larger than the capacity is cut to the capacity, the frame count says
+ * how many boids are in each frame.
+ *
+ * A new exporter builds its file beside the old one and renames it into place,
+ * so the file is never truncated under a reader that still has it mapped. That
+ * reader just sees no more frames, and has to open the file again to follow the
+ * new one.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public class SharedStateExporter implements Closeable {
+
+    public static final int DEFAULT_SLOTS = 3;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int slots;
+    private final int capacity;
+    private final int slotBytes;
+    private long frame = 0;
+
+    public SharedStateExporter(Path file, int capacity, int slots, long stepNanos, double sizeX, double sizeY,
+        double sizeZ) throws IOException {
+        if (slots < 2) {
+            throw new IllegalArgumentException("Need at least two slots: " + slots);
+        }
+        this.slots = slots;
+        this.capacity = capacity;
+        slotBytes = SharedState.slotBytes(capacity);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                SharedState.HEADER_BYTES + (long) slots * slotBytes);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(8, SharedState.VERSION);
+        buffer.putInt(SharedState.SLOTS_OFFSET, slots);
+        buffer.putInt(SharedState.CAPACITY_OFFSET, capacity);
+        buffer.putInt(SharedState.SLOT_BYTES_OFFSET, slotBytes);
+        buffer.putLong(SharedState.LATEST_OFFSET, 0);
+        buffer.putDouble(SharedState.SIZE_X_OFFSET, sizeX);
+        buffer.putDouble(SharedState.SIZE_Y_OFFSET, sizeY);
+        buffer.putDouble(SharedState.SIZE_Z_OFFSET, sizeZ);
+        buffer.putLong(SharedState.STEP_NANOS_OFFSET, stepNanos);
+        // The magic goes in last, so a reader never sees a half written header
+        VarHandle.storeStoreFence();
+        buffer.put(0, SharedState.MAGIC);
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Frames published so far.
+     */
+    public long getFrameCount() {
+        return frame;
+    }
+
+    /**
+     * Publish the flock as it is now, as the latest frame.
+     */
+    public void publish(Flock flock, long step) {
+        long n = frame + 1;
+        int base = SharedState.HEADER_BYTES + (int) ((n - 1) % slots) * slotBytes;
+        SharedState.LONGS.setOpaque(buffer, base + SharedState.SEQUENCE, 2 * n - 1);
+        VarHandle.storeStoreFence();
+
+        int count = Math.min(flock.getCount(), capacity);
+        buffer.putLong(base + SharedState.STEP, step);
+        buffer.putLong(base + SharedState.TIME, System.currentTimeMillis() * 1_000_000L);
+        buffer.putInt(base + SharedState.COUNT, count);
+        buffer.putInt(base + SharedState.BREAK_COUNT, flock.getBreakCount());
+        buffer.putInt(base + SharedState.COLLISIONS, flock.getCollisions());
+        int p = base + SharedState.SLOT_HEADER_BYTES;
+        int stride = capacity * Double.BYTES;
+        for (int i = 0; i < count; i++) {
+            int q = p + i * Double.BYTES;
+            buffer.putDouble(q, flock.getX(i));
+            buffer.putDouble(q + stride, flock.getY(i));
+            buffer.putDouble(q + 2 * stride, flock.getZ(i));
+            buffer.putDouble(q + 3 * stride, flock.getVX(i));
+            buffer.putDouble(q + 4 * stride, flock.getVY(i));
+            buffer.putDouble(q + 5 * stride, flock.getVZ(i));
+        }
+        p += 6 * stride;
+        for (int i = 0; i < count; i++) {
+            buffer.putInt(p + i * Integer.BYTES, flock.getNumNearby(i));
+        }
+
+        SharedState.LONGS.setRelease(buffer, base + SharedState.SEQUENCE, 2 * n);
+        SharedState.LONGS.setRelease(buffer, SharedState.LATEST_OFFSET, n);
+        frame = n;
+    }
+
+    /**
+     * Stop publishing. The file is left in place, with its last frame, for
+     * readers still attached.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,240 @@
+package com.gls.boids;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reference reader for the shared memory frames published by SharedStateExporter.
+ * Also runs on its own, printing a summary of the flock once a second:
+ *
+ * <pre>
+ * java -cp bin com.gls.boids.SharedStateReader /dev/shm/boids.shm
+ * </pre>
+ *
+ * A Frame reads straight from the mapped file, nothing is copied. Start a read
+ * with acquire(), read what is needed, and then check it with validate(). If the
+ * writer came round to the slot in the meantime validate() says so, and the read
+ * has to be done again. See SharedState for the layout and protocol.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public class SharedStateReader implements Closeable {
+
+    private static final int READ_ATTEMPTS = 100;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int slots;
+    private final int capacity;
+    private final int slotBytes;
+
+    public SharedStateReader(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            if (channel.size() < SharedState.HEADER_BYTES) {
+                throw new IOException("Not a boid state file: " + file);
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, SharedState.HEADER_BYTES);
+            byte[] magic = new byte[SharedState.MAGIC.length];
+            header.get(0, magic);
+            VarHandle.loadLoadFence();
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            if (!Arrays.equals(magic, SharedState.MAGIC) || header.getInt(8) != SharedState.VERSION) {
+                throw new IOException("Not a boid state file: " + file);
+            }
+            slots = header.getInt(SharedState.SLOTS_OFFSET);
+            capacity = header.getInt(SharedState.CAPACITY_OFFSET);
+            slotBytes = header.getInt(SharedState.SLOT_BYTES_OFFSET);
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, SharedState.HEADER_BYTES + (long) slots * slotBytes);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public double getSizeX() {
+        return buffer.getDouble(SharedState.SIZE_X_OFFSET);
+    }
+
+    public double getSizeY() {
+        return buffer.getDouble(SharedState.SIZE_Y_OFFSET);
+    }
+
+    public double getSizeZ() {
+        return buffer.getDouble(SharedState.SIZE_Z_OFFSET);
+    }
+
+    public long getStepNanos() {
+        return buffer.getLong(SharedState.STEP_NANOS_OFFSET);
+    }
+
+    /**
+     * Sequence number of the newest whole frame, 0 if there is none yet.
+     */
+    public long getLatest() {
+        return (long) SharedState.LONGS.getAcquire(buffer, SharedState.LATEST_OFFSET);
+    }
+
+    /**
+     * A view of one frame at a time. Reuse it, it holds no data of its own.
+     */
+    public Frame newFrame() {
+        return new Frame();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public class Frame {
+        private int base;
+        private long number;
+        private long sequence;
+
+        /**
+         * Start reading the latest frame. False if there is none yet, or the writer
+         * has already moved on, in which case just try again.
+         */
+        public boolean acquire() {
+            long n = getLatest();
+            if (n == 0) {
+                return false;
+            }
+            base = SharedState.HEADER_BYTES + (int) ((n - 1) % slots) * slotBytes;
+            sequence = (long) SharedState.LONGS.getAcquire(buffer, base + SharedState.SEQUENCE);
+            number = n;
+            return sequence == 2 * n;
+        }
+
+        /**
+         * True if everything read since acquire() came from one whole frame.
+         */
+        public boolean validate() {
+            VarHandle.loadLoadFence();
+            return (long) SharedState.LONGS.getAcquire(buffer, base + SharedState.SEQUENCE) == sequence;
+        }
+
+        /**
+         * Sequence number of the frame, from 1.
+         */
+        public long getNumber() {
+            return number;
+        }
+
+        public long getStep() {
+            return buffer.getLong(base + SharedState.STEP);
+        }
+
+        /**
+         * Wall clock time of the step, in nanoseconds since 1970.
+         */
+        public long getTime() {
+            return buffer.getLong(base + SharedState.TIME);
+        }
+
+        /**
+         * Boids in the frame. Clamped to the capacity, so a torn read can't index
+         * past the slot.
+         */
+        public int getCount() {
+            return Math.max(0, Math.min(capacity, buffer.getInt(base + SharedState.COUNT)));
+        }
+
+        public int getBreakCount() {
+            return buffer.getInt(base + SharedState.BREAK_COUNT);
+        }
+
+        public int getCollisions() {
+            return buffer.getInt(base + SharedState.COLLISIONS);
+        }
+
+        public double getX(int i) {
+            return get(0, i);
+        }
+
+        public double getY(int i) {
+            return get(1, i);
+        }
+
+        public double getZ(int i) {
+            return get(2, i);
+        }
+
+        public double getVX(int i) {
+            return get(3, i);
+        }
+
+        public double getVY(int i) {
+            return get(4, i);
+        }
+
+        public double getVZ(int i) {
+            return get(5, i);
+        }
+
+        public int getNumNearby(int i) {
+            return buffer.getInt(base + SharedState.arrayOffset(capacity, 6) + i * Integer.BYTES);
+        }
+
+        private double get(int array, int i) {
+            return buffer.getDouble(base + SharedState.arrayOffset(capacity, array) + i * Double.BYTES);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("Usage: SharedStateReader FILE");
+            System.exit(2);
+        }
+        try (SharedStateReader reader = new SharedStateReader(Paths.get(args[0]))) {
+            Frame frame = reader.newFrame();
+            long last = 0;
+            while (true) {
+                boolean read = false;
+                long step = 0;
+                int count = 0;
+                double cx = 0.0, cy = 0.0, cz = 0.0, speed = 0.0;
+                for (int attempt = 0; attempt < READ_ATTEMPTS && !read; attempt++) {
+                    if (!frame.acquire()) {
+                        Thread.onSpinWait();
+                        continue;
+                    }
+                    step = frame.getStep();
+                    count = frame.getCount();
+                    cx = cy = cz = speed = 0.0;
+                    for (int i = 0; i < count; i++) {
+                        cx += frame.getX(i);
+                        cy += frame.getY(i);
+                        cz += frame.getZ(i);
+                        double vx = frame.getVX(i), vy = frame.getVY(i), vz = frame.getVZ(i);
+                        speed += Math.sqrt(vx * vx + vy * vy + vz * vz);
+                    }
+                    read = frame.validate();
+                }
+                if (read && count > 0) {
+                    System.out.printf("frame %d step %d boids %d center (%.1f, %.1f, %.1f) speed %.3f, %d frames"
+                        + " since last%n", frame.getNumber(), step, count, cx / count, cy / count, cz / count,
+                        speed / count, frame.getNumber() - last);
+                    last = frame.getNumber();
+                } else if (!read) {
+                    System.out.println("no whole frame");
+                }
+                Thread.sleep(1000);
+            }
+        }
+    }
+}
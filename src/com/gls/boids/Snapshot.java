@@ -0,0 +1,243 @@
+package com.gls.boids;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Copy of the flock state after one simulation step.
+ *
+ * Snapshots are filled by the simulation thread, or by a trajectory player, and
+ * then published. Once published a snapshot does not change until the reader
+ * lets go of it, see SnapshotRing.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public class Snapshot {
+
+    private long serial = -1;
+    private long step;
+    private long time;
+    private int count;
+    private int breakCount;
+    private int collisions;
+    private long neighborNanos;
+    private long steeringNanos;
+    private long checksum;
+    private boolean clustered;
+    private int numClusters;
+    private int largestCluster;
+
+    private double[] x, y, z;
+    private double[] vx, vy, vz;
+    private int[] numNearby;
+    // Each boid's flock and the number of boids in it, see Flock.setClustering()
+    private int[] clusterId;
+    private int[] clusterSize;
+
+    Snapshot(int capacity) {
+        allocate(capacity);
+    }
+
+    // Grows with the flock, so only a step that adds boids allocates here
+    private void ensureCapacity(int n) {
+        if (x.length < n) {
+            allocate(Math.max(n, 2 * x.length));
+        }
+    }
+
+    private void allocate(int capacity) {
+        x = new double[capacity];
+        y = new double[capacity];
+        z = new double[capacity];
+        vx = new double[capacity];
+        vy = new double[capacity];
+        vz = new double[capacity];
+        numNearby = new int[capacity];
+        clusterId = new int[capacity];
+        clusterSize = new int[capacity];
+    }
+
+    void setSerial(long serial) {
+        this.serial = serial;
+    }
+
+    void fill(Flock flock, long step, long time) {
+        this.step = step;
+        this.time = time;
+        count = flock.getCount();
+        ensureCapacity(count);
+        breakCount = flock.getBreakCount();
+        collisions = flock.getCollisions();
+        neighborNanos = flock.getNeighborNanos();
+        steeringNanos = flock.getSteeringNanos();
+        clustered = flock.hasClusters();
+        numClusters = clustered ? flock.getNumClusters() : 0;
+        largestCluster = 0;
+        long hash = StateChecksum.START;
+        for (int i = 0; i < count; i++) {
+            if (clustered) {
+                clusterId[i] = flock.getClusterId(i);
+                clusterSize[i] = flock.getClusterSize(clusterId[i]);
+                largestCluster = Math.max(largestCluster, clusterSize[i]);
+            }
+            x[i] = flock.getX(i);
+            y[i] = flock.getY(i);
+            z[i] = flock.getZ(i);
+            vx[i] = flock.getVX(i);
+            vy[i] = flock.getVY(i);
+            vz[i] = flock.getVZ(i);
+            numNearby[i] = flock.getNumNearby(i);
+            hash = StateChecksum.add(hash, x[i], y[i], z[i], vx[i], vy[i], vz[i]);
+        }
+        checksum = hash;
+    }
+
+    // One frame of a recording, laid out as TrajectoryRecorder describes
+    void fill(ByteBuffer frame, int base, int count, long time) {
+        this.time = time;
+        this.count = count;
+        ensureCapacity(count);
+        step = frame.getLong(base);
+        breakCount = frame.getInt(base + 8);
+        collisions = frame.getInt(base + 12);
+        neighborNanos = 0;
+        steeringNanos = 0;
+        // Recordings don't keep the flocks
+        clustered = false;
+        numClusters = 0;
+        largestCluster = 0;
+        int p = base + TrajectoryRecorder.FRAME_HEADER_BYTES;
+        int stride = count * Double.BYTES;
+        for (int i = 0; i < count; i++) {
+            int q = p + i * Double.BYTES;
+            x[i] = frame.getDouble(q);
+            y[i] = frame.getDouble(q + stride);
+            z[i] = frame.getDouble(q + 2 * stride);
+            vx[i] = frame.getDouble(q + 3 * stride);
+            vy[i] = frame.getDouble(q + 4 * stride);
+            vz[i] = frame.getDouble(q + 5 * stride);
+        }
+        p += 6 * stride;
+        for (int i = 0; i < count; i++) {
+            numNearby[i] = frame.getInt(p + i * Integer.BYTES);
+        }
+        long hash = StateChecksum.START;
+        for (int i = 0; i < count; i++) {
+            hash = StateChecksum.add(hash, x[i], y[i], z[i], vx[i], vy[i], vz[i]);
+        }
+        checksum = hash;
+    }
+
+    /**
+     * Publish order. Increases by one for every snapshot published.
+     */
+    public long getSerial() {
+        return serial;
+    }
+
+    /**
+     * Simulation step this is the result of.
+     */
+    public long getStep() {
+        return step;
+    }
+
+    /**
+     * System.nanoTime() when the snapshot was published.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getBreakCount() {
+        return breakCount;
+    }
+
+    public int getCollisions() {
+        return collisions;
+    }
+
+    /**
+     * Time the step spent on neighbors, see Flock.getNeighborNanos().
+     */
+    public long getNeighborNanos() {
+        return neighborNanos;
+    }
+
+    /**
+     * Time the step spent steering, see Flock.getSteeringNanos().
+     */
+    public long getSteeringNanos() {
+        return steeringNanos;
+    }
+
+    /**
+     * StateChecksum of the positions and velocities.
+     */
+    public long getChecksum() {
+        return checksum;
+    }
+
+    public double getX(int i) {
+        return x[i];
+    }
+
+    public double getY(int i) {
+        return y[i];
+    }
+
+    public double getZ(int i) {
+        return z[i];
+    }
+
+    public double getVX(int i) {
+        return vx[i];
+    }
+
+    public double getVY(int i) {
+        return vy[i];
+    }
+
+    public double getVZ(int i) {
+        return vz[i];
+    }
+
+    public int getNumNearby(int i) {
+        return numNearby[i];
+    }
+
+    /**
+     * Whether the flocks were found for this step, so the cluster getters hold.
+     */
+    public boolean hasClusters() {
+        return clustered;
+    }
+
+    public int getNumClusters() {
+        return numClusters;
+    }
+
+    /**
+     * Number of boids in the biggest flock.
+     */
+    public int getLargestCluster() {
+        return largestCluster;
+    }
+
+    /**
+     * The flock boid i is in, named by the lowest boid index in it.
+     */
+    public int getClusterId(int i) {
+        return clusterId[i];
+    }
+
+    /**
+     * Number of boids in boid i's flock, one if it is on its own.
+     */
+    public int getClusterSize(int i) {
+        return clusterSize[i];
+    }
+}
@@ -0,0 +1,76 @@
+package com.gls.boids;
+
+/**
+ * A small ring of snapshots passed from one writer thread to one reader thread.
+ *
+ * The reader keeps the last two it has taken so it can interpolate between them,
+ * and tells the writer which it holds with retain(). The writer never claims a
+ * snapshot at or after the older one. If the ring is full, claim() returns null
+ * and the writer skips publishing that time.
+ *
+ * Two held snapshots too far apart would leave the writer nowhere to go: with
+ * the newest one already taken, it could never publish the one the reader waits
+ * for. So retain() only holds the older one while the writer still has a free
+ * slot after the newer, and otherwise tells the reader to drop it. Nothing on
+ * either side takes a lock, and once the ring is allocated nothing allocates.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public class SnapshotRing {
+
+    public static final int DEFAULT_SIZE = 4;
+
+    private final Snapshot[] ring;
+    private volatile Snapshot latest;
+    private volatile long retained = 0;
+    private long serial = 0;
+
+    public SnapshotRing(int size, int capacity) {
+        ring = new Snapshot[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Snapshot(capacity);
+        }
+    }
+
+    public Snapshot getLatest() {
+        return latest;
+    }
+
+    /**
+     * Hold prev and cur, and every snapshot published after prev. Returns false if
+     * they are too far apart, in which case only cur is held and the reader has to
+     * let go of prev.
+     */
+    public boolean retain(Snapshot prev, Snapshot cur) {
+        // Holding prev leaves slots for the serials up to prev + length - 1, and
+        // the writer needs one past cur
+        if (cur.getSerial() - prev.getSerial() >= ring.length - 1) {
+            retained = cur.getSerial();
+            return false;
+        }
+        retained = prev.getSerial();
+        return true;
+    }
+
+    /**
+     * The next snapshot to fill, or null if the reader still holds it. Writer
+     * thread only.
+     */
+    Snapshot claim() {
+        long nextSerial = serial + 1;
+        // The slot still holds the snapshot from ring.length publishes ago
+        if (nextSerial - ring.length >= retained && nextSerial > ring.length) {
+            return null;
+        }
+        return ring[(int) (nextSerial % ring.length)];
+    }
+
+    /**
+     * Hand a claimed and filled snapshot to the reader. Writer thread only.
+     */
+    void publish(Snapshot snapshot) {
+        serial++;
+        snapshot.setSerial(serial);
+        latest = snapshot;
+    }
+}
@@ -0,0 +1,151 @@
+package com.gls.boids;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a SnapshotRing hard, with a reader that stalls now and then the way the
+ * render thread does, and checks the handoff. The reader must never see a
+ * snapshot it holds change under it, and the writer must never be shut out for
+ * good.
+ *
+ * <pre>
+ * java -cp bin com.gls.boids.SnapshotRingCheck -seconds 10 -stall 200
+ * </pre>
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public class SnapshotRingCheck {
+
+    private static final double FIELD_SIZE = 100.0;
+    // Longer than any stall, so a writer shut out this long is stuck for good
+    private static final long STUCK_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private double seconds = 10.0;
+    private int stallMillis = 200;
+    private int lerpSteps = 4;
+    private long seed = 1;
+
+    private volatile boolean running = true;
+    private volatile long published;
+    private volatile long stepped;
+
+    public static void main(String[] args) {
+        SnapshotRingCheck check = new SnapshotRingCheck();
+        try {
+            check.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: SnapshotRingCheck [-seconds S] [-stall MS] [-lerp STEPS] [-seed S]");
+            System.exit(2);
+        }
+        System.exit(check.run() ? 0 : 1);
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + name);
+            }
+            String value = args[++i];
+            switch (name) {
+            case "-seconds":
+                seconds = Double.parseDouble(value);
+                break;
+            case "-stall":
+                stallMillis = Integer.parseInt(value);
+                break;
+            case "-lerp":
+                lerpSteps = Integer.parseInt(value);
+                break;
+            case "-seed":
+                seed = Long.parseLong(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + name);
+            }
+        }
+    }
+
+    private boolean run() {
+        SnapshotRing ring = new SnapshotRing(SnapshotRing.DEFAULT_SIZE, 16);
+        Flock flock = new Flock(16, FIELD_SIZE, FIELD_SIZE, FIELD_SIZE);
+        Thread writer = new Thread(() -> write(ring, flock), "Writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        SplittableRandom random = new SplittableRandom(seed);
+        Snapshot prev = null;
+        Snapshot cur = null;
+        long prevStep = 0;
+        long curStep = 0;
+        long frames = 0;
+        long advances = 0;
+        long dropped = 0;
+        long overwritten = 0;
+        long stuck = 0;
+        long lastAdvance = System.nanoTime();
+        long end = lastAdvance + (long) (seconds * 1e9);
+        while (System.nanoTime() - end < 0) {
+            frames++;
+            // Mostly a frame's worth, now and then a long stall
+            long pause = random.nextInt(10) == 0 ? random.nextInt(stallMillis + 1) : random.nextInt(17);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(pause));
+
+            // The snapshots held since last time are as they were
+            if (cur != null && (cur.getStep() != curStep || prev.getStep() != prevStep)) {
+                overwritten++;
+            }
+            Snapshot latest = ring.getLatest();
+            long now = System.nanoTime();
+            if (latest == null || latest == cur) {
+                if (now - lastAdvance > STUCK_NANOS) {
+                    stuck++;
+                    lastAdvance = now;
+                }
+                continue;
+            }
+            // Same rule as Boids3D.onUpdate()
+            boolean jump = cur == null || latest.getStep() < cur.getStep() || latest.getStep() - cur.getStep() > lerpSteps;
+            prev = jump ? latest : cur;
+            cur = latest;
+            if (!ring.retain(prev, cur)) {
+                prev = cur;
+                dropped++;
+            }
+            prevStep = prev.getStep();
+            curStep = cur.getStep();
+            advances++;
+            lastAdvance = now;
+        }
+        running = false;
+
+        System.out.printf("steps        %12d%n", stepped);
+        System.out.printf("published    %12d%n", published);
+        System.out.printf("frames       %12d, %d with a new snapshot%n", frames, advances);
+        System.out.printf("too far      %12d (older snapshot let go)%n", dropped);
+        System.out.printf("overwritten  %12d%n", overwritten);
+        System.out.printf("stuck        %12d (no new snapshot for %d ms)%n", stuck, STUCK_NANOS / 1_000_000);
+        boolean ok = overwritten == 0 && stuck == 0;
+        System.out.println(ok ? "OK" : "FAILED");
+        return ok;
+    }
+
+    // As fast as it can, a little faster than the simulation
+    private void write(SnapshotRing ring, Flock flock) {
+        long step = 0;
+        while (running) {
+            step++;
+            Snapshot snapshot = ring.claim();
+            if (snapshot != null) {
+                snapshot.fill(flock, step, System.nanoTime());
+                ring.publish(snapshot);
+                published++;
+            }
+            stepped = step;
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+}
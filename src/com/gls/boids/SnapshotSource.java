@@ -0,0 +1,27 @@
+package com.gls.boids;
+
+/**
+ * Somewhere the render thread can take snapshots from: the live simulation, or a
+ * recording being played back.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public interface SnapshotSource {
+
+    /**
+     * The most recently published snapshot.
+     */
+    Snapshot getLatest();
+
+    /**
+     * Tell the source the two snapshots the reader holds. They, and every snapshot
+     * published after prev, are left alone. Returns false if the source can't hold
+     * both, and only holds cur.
+     */
+    boolean retain(Snapshot prev, Snapshot cur);
+
+    /**
+     * Time between snapshots, for interpolating between them.
+     */
+    long getStepNanos();
+}
@@ -0,0 +1,245 @@
+package com.gls.boids;
+
+import java.util.Arrays;
+
+/**
+ * Uniform cell grid for neighbor queries in a box that wraps around on X and Z.
+ *
+ * The field is centered on the origin. X and Z wrap (toroidal), Y does not: points
+ * above or below the field are clamped into the top or bottom layer of cells.
+ *
+ * Cells are at least as wide as the query range, so a query only has to look at
+ * the 3x3x3 block of cells around the query point. Boids are bucketed with a
+ * counting sort, and all arrays are reused between builds.
+ *
+ * The coordinates are copied out in cell order, so each cell's points sit side by
+ * side and the distance tests run over contiguous memory, see DistanceKernel.
+ * Queries only use the copy, so the input arrays are free to change once build()
+ * returns, and a grid can be built on one thread while another steps the flock.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public class SpatialGrid {
+
+    // Keeps the cell count sane when the view range is tiny (or zero).
+    private static final int MAX_CELLS_PER_AXIS = 64;
+
+    private final double sizeX, sizeY, sizeZ;
+
+    private int cellsX, cellsY, cellsZ;
+    private double cellX, cellY, cellZ;
+    private double range;
+
+    private int[] cellStart = new int[0];
+    private int[] cellItems = new int[0];
+    private int[] itemCell = new int[0];
+    private int[] itemSlot = new int[0];
+    // Coordinates in cell order, parallel to cellItems
+    private double[] cellPosX = new double[0];
+    private double[] cellPosY = new double[0];
+    private double[] cellPosZ = new double[0];
+
+    // Holds no state, so it can be shared by every thread
+    private final DistanceKernel scalar = new ScalarDistanceKernel();
+
+    private int count;
+
+    public SpatialGrid(double sizeX, double sizeY, double sizeZ) {
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+    }
+
+    /**
+     * Bucket the first count points. The arrays are only read here.
+     */
+    public void build(double[] x, double[] y, double[] z, int count, double range) {
+        this.count = count;
+        this.range = range;
+
+        cellsX = numCells(sizeX, range);
+        cellsY = numCells(sizeY, range);
+        cellsZ = numCells(sizeZ, range);
+        cellX = sizeX / cellsX;
+        cellY = sizeY / cellsY;
+        cellZ = sizeZ / cellsZ;
+
+        int numCells = cellsX * cellsY * cellsZ;
+        if (cellStart.length < numCells + 1) {
+            cellStart = new int[numCells + 1];
+        }
+        if (cellItems.length < count) {
+            cellItems = new int[count];
+            itemCell = new int[count];
+            itemSlot = new int[count];
+            cellPosX = new double[count];
+            cellPosY = new double[count];
+            cellPosZ = new double[count];
+        }
+
+        // Counting sort by cell
+        Arrays.fill(cellStart, 0, numCells + 1, 0);
+        for (int i = 0; i < count; i++) {
+            int cell = cellOf(x[i], y[i], z[i]);
+            itemCell[i] = cell;
+            cellStart[cell + 1]++;
+        }
+        for (int c = 0; c < numCells; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        for (int i = 0; i < count; i++) {
+            int cell = itemCell[i];
+            // Use the slot start as a cursor, then shift everything back afterwards.
+            cellItems[cellStart[cell]++] = i;
+        }
+        for (int c = numCells; c > 0; c--) {
+            cellStart[c] = cellStart[c - 1];
+        }
+        cellStart[0] = 0;
+        for (int s = 0; s < count; s++) {
+            int i = cellItems[s];
+            itemSlot[i] = s;
+            cellPosX[s] = x[i];
+            cellPosY[s] = y[i];
+            cellPosZ[s] = z[i];
+        }
+    }
+
+    /**
+     * Find every other point within range of point index. Distances use the wrapped
+     * (shortest) displacement on X and Z. The range must not exceed the range the
+     * grid was built with.
+     *
+     * @return the number of neighbor indices written to out
+     */
+    public int neighbors(int index, double range, int[] out) {
+        return neighbors(index, range, out, scalar);
+    }
+
+    /**
+     * Same as neighbors(index, range, out), with the distance tests done by the
+     * given kernel. Every kernel finds the same neighbors in the same order.
+     */
+    public int neighbors(int index, double range, int[] out, DistanceKernel kernel) {
+        if (range > this.range) {
+            throw new IllegalArgumentException("Query range " + range + " exceeds grid range " + this.range);
+        }
+        int slot = itemSlot[index];
+        double px = cellPosX[slot];
+        double py = cellPosY[slot];
+        double pz = cellPosZ[slot];
+        double range2 = range * range;
+
+        int cell = itemCell[index];
+        int cx = cell % cellsX;
+        int cy = (cell / cellsX) % cellsY;
+        int cz = cell / (cellsX * cellsY);
+
+        // Y does not wrap, and fewer than three cells on X or Z must not be visited twice.
+        int y0 = Math.max(cy - 1, 0);
+        int y1 = Math.min(cy + 1, cellsY - 1);
+        int x0 = cellsX < 3 ? 0 : cx - 1;
+        int x1 = cellsX < 3 ? cellsX - 1 : cx + 1;
+        int z0 = cellsZ < 3 ? 0 : cz - 1;
+        int z1 = cellsZ < 3 ? cellsZ - 1 : cz + 1;
+
+        int n = 0;
+        for (int k = z0; k <= z1; k++) {
+            int kz = Math.floorMod(k, cellsZ);
+            for (int j = y0; j <= y1; j++) {
+                int row = cellsX * (j + cellsY * kz);
+                if (x0 >= 0 && x1 < cellsX) {
+                    // Neighboring cells along X are next to each other in slot order,
+                    // so the whole row goes to the kernel as one run
+                    n = kernel.collect(cellPosX, cellPosY, cellPosZ, cellItems, cellStart[row + x0],
+                        cellStart[row + x1 + 1], px, py, pz, range2, sizeX, sizeZ, index, out, n);
+                    continue;
+                }
+                for (int i = x0; i <= x1; i++) {
+                    int c = row + Math.floorMod(i, cellsX);
+                    n = kernel.collect(cellPosX, cellPosY, cellPosZ, cellItems, cellStart[c], cellStart[c + 1], px,
+                        py, pz, range2, sizeX, sizeZ, index, out, n);
+                }
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Upper bound on the number of neighbors a query for point index can return,
+     * for sizing the output array.
+     */
+    public int candidates(int index) {
+        int cell = itemCell[index];
+        int cx = cell % cellsX;
+        int cy = (cell / cellsX) % cellsY;
+        int cz = cell / (cellsX * cellsY);
+
+        int y0 = Math.max(cy - 1, 0);
+        int y1 = Math.min(cy + 1, cellsY - 1);
+        int x0 = cellsX < 3 ? 0 : cx - 1;
+        int x1 = cellsX < 3 ? cellsX - 1 : cx + 1;
+        int z0 = cellsZ < 3 ? 0 : cz - 1;
+        int z1 = cellsZ < 3 ? cellsZ - 1 : cz + 1;
+
+        int n = 0;
+        for (int k = z0; k <= z1; k++) {
+            int kz = Math.floorMod(k, cellsZ);
+            for (int j = y0; j <= y1; j++) {
+                for (int i = x0; i <= x1; i++) {
+                    int c = Math.floorMod(i, cellsX) + cellsX * (j + cellsY * kz);
+                    n += cellStart[c + 1] - cellStart[c];
+                }
+            }
+        }
+        return n;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * The range the grid was built for, the most a query can ask for.
+     */
+    public double getRange() {
+        return range;
+    }
+
+    public int getNumCells() {
+        return cellsX * cellsY * cellsZ;
+    }
+
+    /**
+     * Wrap a displacement along an axis of the given size so it is the shortest way
+     * around.
+     */
+    public static double wrap(double d, double size) {
+        if (d > size / 2.0) {
+            return d - size;
+        } else if (d < -size / 2.0) {
+            return d + size;
+        }
+        return d;
+    }
+
+    private static int numCells(double size, double range) {
+        if (range <= 0.0) {
+            return MAX_CELLS_PER_AXIS;
+        }
+        return (int) Math.max(1, Math.min(MAX_CELLS_PER_AXIS, Math.floor(size / range)));
+    }
+
+    private int cellOf(double px, double py, double pz) {
+        int ix = clamp((int) Math.floor((px + sizeX / 2.0) / cellX), cellsX);
+        int iy = clamp((int) Math.floor((py + sizeY / 2.0) / cellY), cellsY);
+        int iz = clamp((int) Math.floor((pz + sizeZ / 2.0) / cellZ), cellsZ);
+        return ix + cellsX * (iy + cellsY * iz);
+    }
+
+    // X and Z are already wrapped by the caller, so clamping only catches the exact
+    // upper edge there. On Y it folds the space above and below into the end cells.
+    private static int clamp(int i, int n) {
+        return i < 0 ? 0 : (i >= n ? n - 1 : i);
+    }
+}
@@ -0,0 +1,44 @@
+package com.gls.boids;
+
+/**
+ * Checksum of a flock's state: every position and velocity, bit for bit, in
+ * boid order.
+ *
+ * Two runs from the same start that give the same checksum after a step agree on
+ * every bit of it, so an optimized step can be checked against a plain one. Flock
+ * and Snapshot both compute it, and give the same value for the same state.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public final class StateChecksum {
+
+    static final long START = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+
+    private StateChecksum() {
+    }
+
+    static long add(long hash, double value) {
+        hash ^= Double.doubleToRawLongBits(value);
+        hash *= PRIME;
+        return hash ^ (hash >>> 32);
+    }
+
+    static long add(long hash, double x, double y, double z, double vx, double vy, double vz) {
+        hash = add(hash, x);
+        hash = add(hash, y);
+        hash = add(hash, z);
+        hash = add(hash, vx);
+        hash = add(hash, vy);
+        return add(hash, vz);
+    }
+
+    public static long of(Flock flock) {
+        long hash = START;
+        for (int i = 0; i < flock.getCount(); i++) {
+            hash = add(hash, flock.getX(i), flock.getY(i), flock.getZ(i), flock.getVX(i), flock.getVY(i),
+                flock.getVZ(i));
+        }
+        return hash;
+    }
+}
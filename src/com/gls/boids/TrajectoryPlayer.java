@@ -0,0 +1,135 @@
+package com.gls.boids;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a recording back at the rate it was recorded, on its own thread, as
+ * snapshots. The render thread reads it just like a FlockSimulation.
+ *
+ * Seeking jumps straight to any frame. Reading a frame happens on the player
+ * thread, so a slow disk never holds up the render thread, it only delays the
+ * next snapshot. Playback stops on the last frame.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public class TrajectoryPlayer implements Runnable, SnapshotSource {
+
+    private final TrajectoryReader reader;
+    private final SnapshotRing ring;
+
+    // Player thread: next frame to show, and whether to show it even when paused
+    private long frame = 0;
+    private boolean force = false;
+    // A seek from another thread, or -1
+    private volatile long seekTo = -1;
+    private volatile long shown = -1;
+    private volatile boolean paused = false;
+    private volatile boolean running = false;
+    private Thread thread;
+
+    public TrajectoryPlayer(TrajectoryReader reader) {
+        this.reader = reader;
+        ring = new SnapshotRing(SnapshotRing.DEFAULT_SIZE, reader.getCount());
+        if (reader.getFrameCount() > 0 && show(0, System.nanoTime())) {
+            frame = 1;
+        }
+    }
+
+    public TrajectoryReader getReader() {
+        return reader;
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this, "trajectory-player");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    public void setPaused(boolean value) {
+        paused = value;
+    }
+
+    /**
+     * Show a frame next, clamped to the recording. Playing or paused, it is shown
+     * on the next step.
+     */
+    public void seek(long frame) {
+        seekTo = Math.max(0, Math.min(frame, reader.getFrameCount() - 1));
+    }
+
+    /**
+     * The frame most recently handed to the reader, or -1 before the first.
+     */
+    public long getFrame() {
+        return shown;
+    }
+
+    public long getFrameCount() {
+        return reader.getFrameCount();
+    }
+
+    @Override
+    public Snapshot getLatest() {
+        return ring.getLatest();
+    }
+
+    @Override
+    public boolean retain(Snapshot prev, Snapshot cur) {
+        return ring.retain(prev, cur);
+    }
+
+    @Override
+    public long getStepNanos() {
+        return reader.getStepNanos();
+    }
+
+    @Override
+    public void run() {
+        long stepNanos = reader.getStepNanos();
+        long next = System.nanoTime();
+        while (running) {
+            long seek = seekTo;
+            if (seek >= 0) {
+                seekTo = -1;
+                frame = seek;
+                force = true;
+            }
+            if ((force || !paused) && frame < reader.getFrameCount() && show(frame, System.nanoTime())) {
+                frame++;
+                force = false;
+            }
+
+            next += stepNanos;
+            long now = System.nanoTime();
+            if (next - now > 0) {
+                LockSupport.parkNanos(this, next - now);
+            } else {
+                next = now;
+            }
+        }
+    }
+
+    // False if the render thread still holds every snapshot
+    private boolean show(long index, long time) {
+        Snapshot snapshot = ring.claim();
+        if (snapshot == null) {
+            return false;
+        }
+        reader.read(index, snapshot, time);
+        ring.publish(snapshot);
+        shown = index;
+        return true;
+    }
+}
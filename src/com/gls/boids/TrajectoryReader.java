@@ -0,0 +1,122 @@
+package com.gls.boids;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads a recording made by TrajectoryRecorder. Frames are read straight from the
+ * mapped file, in any order.
+ *
+ * The file is mapped in segments, on first use, and each segment stays mapped
+ * until the reader is collected. Reading a frame from a mapped segment does not
+ * allocate. Not thread safe, give each thread its own reader.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public class TrajectoryReader implements Closeable {
+
+    private final FileChannel channel;
+    private final int count;
+    private final long stepNanos;
+    private final double sizeX, sizeY, sizeZ;
+    private final long frameCount;
+    private final int frameBytes;
+    private final int framesPerSegment;
+    private final MappedByteBuffer[] segments;
+
+    public TrajectoryReader(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        if (channel.size() < TrajectoryRecorder.HEADER_BYTES) {
+            channel.close();
+            throw new IOException("Not a boid recording: " + file);
+        }
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, TrajectoryRecorder.HEADER_BYTES);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        byte[] magic = new byte[TrajectoryRecorder.MAGIC.length];
+        header.get(0, magic);
+        if (!Arrays.equals(magic, TrajectoryRecorder.MAGIC) || header.getInt(8) != TrajectoryRecorder.VERSION) {
+            channel.close();
+            throw new IOException("Not a boid recording: " + file);
+        }
+        count = header.getInt(12);
+        stepNanos = header.getLong(16);
+        sizeX = header.getDouble(24);
+        sizeY = header.getDouble(32);
+        sizeZ = header.getDouble(40);
+        frameBytes = header.getInt(56);
+        if (frameBytes != TrajectoryRecorder.frameBytes(count)) {
+            channel.close();
+            throw new IOException("Bad frame size " + frameBytes + " in " + file);
+        }
+        // Believe the header, unless the file was cut short
+        long whole = (channel.size() - TrajectoryRecorder.HEADER_BYTES) / frameBytes;
+        frameCount = Math.min(header.getLong(TrajectoryRecorder.FRAME_COUNT_OFFSET), whole);
+        framesPerSegment = TrajectoryRecorder.framesPerSegment(frameBytes);
+        segments = new MappedByteBuffer[(int) ((frameCount + framesPerSegment - 1) / framesPerSegment)];
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getStepNanos() {
+        return stepNanos;
+    }
+
+    public double getSizeX() {
+        return sizeX;
+    }
+
+    public double getSizeY() {
+        return sizeY;
+    }
+
+    public double getSizeZ() {
+        return sizeZ;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Read one frame into a snapshot with room for getCount() boids.
+     */
+    public void read(long frame, Snapshot snapshot, long time) {
+        if (frame < 0 || frame >= frameCount) {
+            throw new IndexOutOfBoundsException("Frame " + frame + " of " + frameCount);
+        }
+        int index = (int) (frame / framesPerSegment);
+        MappedByteBuffer segment = segments[index];
+        if (segment == null) {
+            segment = mapSegment(index);
+        }
+        snapshot.fill(segment, (int) (frame % framesPerSegment) * frameBytes, count, time);
+    }
+
+    private MappedByteBuffer mapSegment(int index) {
+        long first = (long) index * framesPerSegment;
+        long frames = Math.min(framesPerSegment, frameCount - first);
+        try {
+            MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY,
+                TrajectoryRecorder.HEADER_BYTES + first * frameBytes, frames * frameBytes);
+            segment.order(ByteOrder.LITTLE_ENDIAN);
+            segments[index] = segment;
+            return segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,169 @@
+package com.gls.boids;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Records a flock, one fixed size frame per step, to a memory mapped file.
+ *
+ * The file is a 64 byte header followed by the frames, all little endian:
+ *
+ * <pre>
+ *  0  8 bytes  magic "BOIDTRJ1"
+ *  8  int      version
+ * 12  int      boids per frame
+ * 16  long     nanoseconds per step
+ * 24  double   field size X, Y and Z
+ * 48  long     frames written
+ * 56  int      bytes per frame
+ * </pre>
+ *
+ * A frame holds the step number, break count and collisions, then X, Y, Z and the
+ * velocities as doubles, one array after the other, then the neighbor counts as
+ * ints, padded to 8 bytes. Frame k starts at 64 + k * frameBytes, so any frame can
+ * be read without looking at the others.
+ *
+ * The frame count in the header is written after each frame, so a recording that
+ * was never closed can still be read up to the last whole frame. Frames are put
+ * straight into the mapping, there are no write calls and nothing allocates except
+ * when the file grows into a new segment.
+ *
+ * The file is left at the end of the last segment, not cut back to the last
+ * frame: a mapping can't be released on demand, and a file can't be truncated
+ * under a live one on Windows, or touched past its end anywhere else. Readers
+ * go by the frame count in the header. The unused tail is zeros, sparse on most
+ * file systems.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public class TrajectoryRecorder implements Closeable {
+
+    static final byte[] MAGIC = "BOIDTRJ1".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 64;
+    static final int FRAME_COUNT_OFFSET = 48;
+    // Frame header: step, break count, collisions
+    static final int FRAME_HEADER_BYTES = 16;
+    // The file is mapped this much at a time, rounded down to whole frames
+    static final long SEGMENT_BYTES = 64L << 20;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final int count;
+    private final int frameBytes;
+    private final int framesPerSegment;
+
+    private MappedByteBuffer segment;
+    private long segmentIndex = -1;
+    private long frameCount = 0;
+
+    public TrajectoryRecorder(Path file, int count, long stepNanos, double sizeX, double sizeY, double sizeZ)
+        throws IOException {
+        this.count = count;
+        frameBytes = frameBytes(count);
+        framesPerSegment = framesPerSegment(frameBytes);
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        header.put(0, MAGIC);
+        header.putInt(8, VERSION);
+        header.putInt(12, count);
+        header.putLong(16, stepNanos);
+        header.putDouble(24, sizeX);
+        header.putDouble(32, sizeY);
+        header.putDouble(40, sizeZ);
+        header.putLong(FRAME_COUNT_OFFSET, 0);
+        header.putInt(56, frameBytes);
+    }
+
+    static int frameBytes(int count) {
+        long bytes = FRAME_HEADER_BYTES + count * (6L * Double.BYTES + Integer.BYTES);
+        bytes = (bytes + 7) & ~7L;
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many boids for one frame: " + count);
+        }
+        return (int) bytes;
+    }
+
+    static int framesPerSegment(int frameBytes) {
+        return (int) Math.max(1, SEGMENT_BYTES / frameBytes);
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getFrameBytes() {
+        return frameBytes;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Append the current state of the flock as the next frame. The flock must have
+     * the count this recorder was made for, a FlockSimulation stops recording when
+     * it changes.
+     */
+    public void append(Flock flock, long step) {
+        if (flock.getCount() != count) {
+            throw new IllegalArgumentException("Flock has " + flock.getCount() + " boids, recording has " + count);
+        }
+        long index = frameCount / framesPerSegment;
+        if (index != segmentIndex) {
+            mapSegment(index);
+        }
+        int base = (int) (frameCount % framesPerSegment) * frameBytes;
+        MappedByteBuffer out = segment;
+        out.putLong(base, step);
+        out.putInt(base + 8, flock.getBreakCount());
+        out.putInt(base + 12, flock.getCollisions());
+        int p = base + FRAME_HEADER_BYTES;
+        int stride = count * Double.BYTES;
+        for (int i = 0; i < count; i++) {
+            int q = p + i * Double.BYTES;
+            out.putDouble(q, flock.getX(i));
+            out.putDouble(q + stride, flock.getY(i));
+            out.putDouble(q + 2 * stride, flock.getZ(i));
+            out.putDouble(q + 3 * stride, flock.getVX(i));
+            out.putDouble(q + 4 * stride, flock.getVY(i));
+            out.putDouble(q + 5 * stride, flock.getVZ(i));
+        }
+        p += 6 * stride;
+        for (int i = 0; i < count; i++) {
+            out.putInt(p + i * Integer.BYTES, flock.getNumNearby(i));
+        }
+        frameCount++;
+        header.putLong(FRAME_COUNT_OFFSET, frameCount);
+    }
+
+    private void mapSegment(long index) {
+        long position = HEADER_BYTES + index * framesPerSegment * (long) frameBytes;
+        try {
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, position, (long) framesPerSegment * frameBytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        segment.order(ByteOrder.LITTLE_ENDIAN);
+        segmentIndex = index;
+    }
+
+    /**
+     * Close the file. Mapped segments stay valid until they are collected, so this
+     * does not wait on the disk. The file keeps its full last segment, see above.
+     */
+    @Override
+    public void close() throws IOException {
+        segment = null;
+        channel.close();
+    }
+}
@@ -0,0 +1,69 @@
+package com.gls.boids;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * A full vector of points at a time, with the Vector API.
+ *
+ * The wrap on X and Z is done with masked lane ops instead of branches: lanes past
+ * half the field take off one field size, lanes past minus half add one. The sums
+ * are done in the same order as the scalar kernel, without fused multiply-add, so
+ * the results are the same to the last bit. The tail of a run that does not fill
+ * a vector goes through the scalar kernel.
+ *
+ * Getting single lanes out of a mask allocates on JDK 17, so the squared
+ * distances are stored to a scratch array and the hits are packed into the output
+ * without branches: every candidate is written, and the count only moves past
+ * the ones that are in range.
+ *
+ * This is the only class that touches jdk.incubator.vector. It has to be compiled
+ * and run with --add-modules jdk.incubator.vector, and is only ever loaded through
+ * DistanceKernels, which falls back to the scalar kernel without the module.
+ *
+ * @author Garret Simpson (gsimpson@gmail.com)
+ */
+public class VectorDistanceKernel implements DistanceKernel {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    private static final DoubleVector ZERO = DoubleVector.zero(SPECIES);
+
+    private final double[] scratch = new double[SPECIES.length()];
+    private final ScalarDistanceKernel tail = new ScalarDistanceKernel();
+
+    @Override
+    public int collect(double[] x, double[] y, double[] z, int[] items, int from, int to, double px, double py,
+        double pz, double range2, double sizeX, double sizeZ, int self, int[] out, int n) {
+        double halfX = sizeX / 2.0;
+        double halfZ = sizeZ / 2.0;
+        int lanes = SPECIES.length();
+        int s = from;
+        for (int bound = from + SPECIES.loopBound(to - from); s < bound; s += lanes) {
+            DoubleVector dx = DoubleVector.fromArray(SPECIES, x, s).sub(px);
+            dx = dx.sub(ZERO.blend(sizeX, dx.compare(VectorOperators.GT, halfX)));
+            dx = dx.add(ZERO.blend(sizeX, dx.compare(VectorOperators.LT, -halfX)));
+            DoubleVector dy = DoubleVector.fromArray(SPECIES, y, s).sub(py);
+            DoubleVector dz = DoubleVector.fromArray(SPECIES, z, s).sub(pz);
+            dz = dz.sub(ZERO.blend(sizeZ, dz.compare(VectorOperators.GT, halfZ)));
+            dz = dz.add(ZERO.blend(sizeZ, dz.compare(VectorOperators.LT, -halfZ)));
+            DoubleVector d2 = dx.mul(dx).add(dy.mul(dy)).add(dz.mul(dz));
+
+            // Nothing to pack if no lane is in range
+            if (d2.compare(VectorOperators.LE, range2).anyTrue()) {
+                d2.intoArray(scratch, 0);
+                for (int lane = 0; lane < lanes; lane++) {
+                    int other = items[s + lane];
+                    out[n] = other;
+                    n += (scratch[lane] <= range2) & (other != self) ? 1 : 0;
+                }
+            }
+        }
+        return tail.collect(x, y, z, items, s, to, px, py, pz, range2, sizeX, sizeZ, self, out, n);
+    }
+
+    @Override
+    public String getName() {
+        return "vector " + SPECIES.vectorBitSize() + "-bit";
+    }
+}